@@ -12,6 +12,39 @@ from typing import Iterable
 class RunKind(enum.Enum):
     INTERPRETED = 1
     COMPILED = 2
+    CLOSURE = 3
+    VM = 4
+    TIERED = 5
+    COMPILED_NO_INLINE = 6
+    VM_NO_INLINE = 7
+    COMPILED_FAST_MATH = 8
+    VM_FAST_MATH = 9
+    COMPILED_OUTLINED = 10
+    COMPILED_STATIC_FUNCTIONS = 11
+
+
+SUBCOMMANDS = {
+    RunKind.INTERPRETED: "run",
+    RunKind.COMPILED: "crun",
+    RunKind.CLOSURE: "run --engine=closure",
+    RunKind.VM: "run --engine=vm",
+    RunKind.TIERED: "run --engine=tiered --tier-threshold=2",
+    # Inlining removes most direct calls, these keep the call paths tested
+    RunKind.COMPILED_NO_INLINE: "crun --inline-depth=0",
+    RunKind.VM_NO_INLINE: "run --engine=vm --inline-depth=0",
+    RunKind.COMPILED_FAST_MATH: "crun --fast-math",
+    RunKind.VM_FAST_MATH: "run --engine=vm --fast-math",
+    # Small enough for the test programs to have scopes outlined
+    RunKind.COMPILED_OUTLINED: "crun --outline-size=40",
+    RunKind.COMPILED_STATIC_FUNCTIONS: "crun --static-functions",
+}
+
+# Fast math may change the last bits of a number, numbers on their own line
+# are compared with this relative tolerance
+TOLERANCES = {
+    RunKind.COMPILED_FAST_MATH: 1e-9,
+    RunKind.VM_FAST_MATH: 1e-9,
+}
 
 
 @dataclasses.dataclass
@@ -35,8 +68,33 @@ def read_test_cases() -> list[TestCase]:
     return tests
 
 
+def parse_number(line: str) -> float | None:
+    try:
+        return float(line)
+    except ValueError:
+        return None
+
+
+def outputs_match(kind: RunKind, expected: str, output: str) -> bool:
+    tolerance = TOLERANCES.get(kind)
+    if tolerance is None or expected == output:
+        return expected == output
+
+    expected_lines = expected.split("\n")
+    output_lines = output.split("\n")
+    if len(expected_lines) != len(output_lines):
+        return False
+    for e, o in zip(expected_lines, output_lines):
+        if e == o:
+            continue
+        a, b = parse_number(e), parse_number(o)
+        if a is None or b is None or abs(a - b) > tolerance * max(1.0, abs(a)):
+            return False
+    return True
+
+
 def run_test_case(kind: RunKind, test_case: TestCase):
-    subcmd = "run" if kind == RunKind.INTERPRETED else "crun"
+    subcmd = SUBCOMMANDS[kind]
     outputproc = subprocess.run(
         f"MAVEN_OPTS=\"-ea\" mvn -q exec:java -Dexec.mainClass=App -Dexec.args=\"{subcmd} {test_case.name}\"",
         shell=True,
@@ -49,7 +107,7 @@ def run_test_case(kind: RunKind, test_case: TestCase):
         sys.exit(1)
 
     output = outputproc.stdout.decode("utf-8")
-    if test_case.expected_output != output:
+    if not outputs_match(kind, test_case.expected_output, output):
         print(f"[FAIL] {test_case.name}")
         print(f"Expected:\n {test_case.expected_output}")
         print(f"Got:\n {output}")
@@ -86,8 +144,8 @@ def main():
         for t in test_cases:
             print(f"Running {t.name}")
     else:
-        run_test_cases(RunKind.INTERPRETED, test_cases)
-        run_test_cases(RunKind.COMPILED, test_cases)
+        for kind in RunKind:
+            run_test_cases(kind, test_cases)
 
 
 if __name__ == "__main__":
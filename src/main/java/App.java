@@ -6,24 +6,87 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import icl.ast.AstNode;
 import icl.pipeline.Pipeline;
+import icl.pipeline.PipelineStage;
+import icl.runtime.Output;
+import icl.stages.closure.ClosureStage;
 import icl.stages.interpretor.InterpretorStage;
 import icl.stages.interpretor.value.Value;
 import icl.stages.jvm.CompilerStage;
+import icl.stages.jvm.RunStage;
+import icl.stages.optimize.FastMathStage;
+import icl.stages.optimize.FoldStage;
+import icl.stages.optimize.InlineStage;
+import icl.stages.optimize.OutlineStage;
+import icl.stages.optimize.SimplifyStage;
 import icl.stages.parser.ParserStage;
 import icl.stages.print.NodePrinterStage;
 import icl.stages.print.PrettyPrinterStage;
+import icl.stages.resolve.ResolverStage;
+import icl.stages.tiered.TieredStage;
 import icl.stages.typecheck.TypeCheckStage;
+import icl.stages.vm.VmStage;
 
 public class App {
-	public static void main(String[] args) throws IOException, InterruptedException {
+	/**
+	 * Command line options in the form --name=value or --name, everything else is
+	 * a positional argument.
+	 */
+	private static class Options {
+		private final Map<String, String> options;
+		private final List<String> positional;
+
+		private Options(Map<String, String> options, List<String> positional) {
+			this.options = options;
+			this.positional = positional;
+		}
+
+		static Options parse(String[] args) {
+			var options = new HashMap<String, String>();
+			var positional = new ArrayList<String>();
+			for (var arg : args) {
+				if (arg.startsWith("--")) {
+					var eq = arg.indexOf('=');
+					if (eq == -1)
+						options.put(arg.substring(2), "");
+					else
+						options.put(arg.substring(2, eq), arg.substring(eq + 1));
+				} else {
+					positional.add(arg);
+				}
+			}
+			return new Options(options, positional);
+		}
+
+		String get(String name, String fallback) {
+			return this.options.getOrDefault(name, fallback);
+		}
+
+		String input() {
+			if (this.positional.isEmpty()) {
+				System.err.println("Missing input file");
+				System.exit(1);
+			}
+			return this.positional.get(0);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
 		if (args.length == 0) {
 			System.err.println("Usage:");
-			System.err.println("compile <input file>");
+			System.err.println("compile [optimization options] [--outline-size=nodes] [--static-functions] <input file>");
 			System.err.println("print <input file>");
-			System.err.println("run <input file>");
-			System.err.println("interactive");
+			System.err.println("run [--engine=tree|closure|vm|tiered] [--tier-threshold=N] [output options] [optimization options] <input file>");
+			System.err.println("crun [output options] [optimization options] [--outline-size=nodes] [--static-functions] <input file>");
+			System.err.println("interactive [--engine=tree|closure|vm|tiered] [--tier-threshold=N] [output options] [optimization options]");
+			System.err.println("output options: [--output-buffer=bytes] [--flush-lines]");
+			System.err.println("optimization options: [--inline-size=nodes] [--inline-depth=N] [--fast-math]");
 			System.exit(1);
 		}
 
@@ -37,7 +100,7 @@ public class App {
 			case "pretty" -> commandPrettyPrint(command_args);
 			case "run" -> commandRun(command_args);
 			case "crun" -> commandCompileAndRun(command_args);
-			case "interactive" -> commandInteractive();
+			case "interactive" -> commandInteractive(command_args);
 			case "test" -> commandTest();
 			default -> {
 				System.err.println("Unknown command: " + command);
@@ -53,12 +116,18 @@ public class App {
 	}
 
 	private static void commandCompile(String[] args) throws IOException {
-		var source_stream = getFileStream(args[0]);
+		var options = Options.parse(args);
+		var source_stream = getFileStream(options.input());
 		var output = Pipeline
 				.begin(Pipeline.<InputStream>forward())
 				.add(new ParserStage())
 				.add(new TypeCheckStage())
-				.add(new CompilerStage())
+				.add(inlineStage(options))
+				.add(new FoldStage())
+				.add(new SimplifyStage())
+				.add(fastMathStage(options))
+				.add(outlineStage(options))
+				.add(compilerStage(options))
 				.process(source_stream);
 
 		Files.createDirectories(Paths.get("calc_target"));
@@ -66,7 +135,9 @@ public class App {
 		for (var compiled_class : output.classes) {
 			var class_name = compiled_class.name;
 			var class_bytes = compiled_class.bytecode;
-			var class_file = new FileOutputStream("calc_target/" + class_name + ".class");
+			var class_path = Paths.get("calc_target", class_name + ".class");
+			Files.createDirectories(class_path.getParent());
+			var class_file = new FileOutputStream(class_path.toFile());
 			class_file.write(class_bytes);
 			class_file.close();
 		}
@@ -87,25 +158,74 @@ public class App {
 	}
 
 	private static void commandRun(String[] args) throws FileNotFoundException {
-		var source_stream = getFileStream(args[0]);
-		var pipeline = interpretorPipeline();
+		var options = Options.parse(args);
+		var source_stream = getFileStream(options.input());
+		configureOutput(options);
+		var pipeline = interpretorPipeline(options);
 		pipeline.process(source_stream);
+		Output.flush();
 	}
 
-	private static void commandCompileAndRun(String[] args) throws IOException, InterruptedException {
-		commandCompile(args);
-		var stdout = Runtime.getRuntime().exec("java -cp calc_target Main").getInputStream();
-		stdout.transferTo(System.out);
+	private static void commandCompileAndRun(String[] args) throws FileNotFoundException {
+		var options = Options.parse(args);
+		var source_stream = getFileStream(options.input());
+		configureOutput(options);
+		Pipeline
+				.begin(Pipeline.<InputStream>forward())
+				.add(new ParserStage())
+				.add(new TypeCheckStage())
+				.add(inlineStage(options))
+				.add(new FoldStage())
+				.add(new SimplifyStage())
+				.add(fastMathStage(options))
+				.add(outlineStage(options))
+				.add(compilerStage(options))
+				.add(new RunStage())
+				.process(source_stream);
 	}
 
-	private static void commandInteractive() {
-		var pipeline = interpretorPipeline();
+	private static void commandInteractive(String[] args) {
+		var options = Options.parse(args);
+		configureOutput(options);
+		var pipeline = interpretorPipeline(options);
 		while (true) {
 			var value = pipeline.process(System.in);
+			Output.flush();
 			System.out.println("Result = " + value);
 		}
 	}
 
+	/**
+	 * Sets the system properties read by the Output of calc programs, must be
+	 * called before anything is printed.
+	 */
+	private static void configureOutput(Options options) {
+		var buffer = options.get("output-buffer", null);
+		if (buffer != null)
+			System.setProperty(Output.BUFFER_PROPERTY, buffer);
+		if (options.get("flush-lines", null) != null)
+			System.setProperty(Output.FLUSH_PROPERTY, "line");
+	}
+
+	private static InlineStage inlineStage(Options options) {
+		var size = options.get("inline-size", String.valueOf(InlineStage.DEFAULT_SIZE));
+		var depth = options.get("inline-depth", String.valueOf(InlineStage.DEFAULT_DEPTH));
+		return new InlineStage(Integer.parseInt(size), Integer.parseInt(depth));
+	}
+
+	private static OutlineStage outlineStage(Options options) {
+		var size = options.get("outline-size", String.valueOf(OutlineStage.DEFAULT_SIZE));
+		return new OutlineStage(Integer.parseInt(size));
+	}
+
+	private static CompilerStage compilerStage(Options options) {
+		return new CompilerStage(options.get("static-functions", null) != null);
+	}
+
+	private static FastMathStage fastMathStage(Options options) {
+		return new FastMathStage(options.get("fast-math", null) != null);
+	}
+
 	private static InputStream getFileStream(String path) throws FileNotFoundException {
 		InputStream source_stream = System.in;
 		if (!path.equals("-"))
@@ -113,12 +233,32 @@ public class App {
 		return source_stream;
 	}
 
-	private static Pipeline<InputStream, Value> interpretorPipeline() {
+	private static Pipeline<InputStream, Value> interpretorPipeline(Options options) {
+		var engine = options.get("engine", "tree");
+		PipelineStage<AstNode, Value> stage = switch (engine) {
+			case "tree" -> new InterpretorStage();
+			case "closure" -> new ClosureStage();
+			case "vm" -> new VmStage();
+			case "tiered" -> {
+				var threshold = options.get("tier-threshold", String.valueOf(TieredStage.DEFAULT_THRESHOLD));
+				yield new TieredStage(new ClosureStage(), Integer.parseInt(threshold));
+			}
+			default -> {
+				System.err.println("Unknown engine: " + engine);
+				System.exit(1);
+				yield null;
+			}
+		};
 		return Pipeline
 				.begin(Pipeline.<InputStream>forward())
 				.add(new ParserStage())
 				.add(new TypeCheckStage())
-				.add(new InterpretorStage());
+				.add(inlineStage(options))
+				.add(new FoldStage())
+				.add(new SimplifyStage())
+				.add(fastMathStage(options))
+				.add(new ResolverStage())
+				.add(stage);
 	}
 
 	private static Pipeline<InputStream, Void> printPipeline() {
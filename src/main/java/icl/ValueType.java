@@ -1,5 +1,6 @@
 package icl;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -112,9 +113,13 @@ public class ValueType {
 
 	public static class Record {
 		private final Map<String, ValueType> fields;
+		// Layout of the record values, fields sorted by name
+		private final String[] names;
 
 		private Record(Map<String, ValueType> fields) {
 			this.fields = Collections.unmodifiableMap(Map.copyOf(fields));
+			this.names = this.fields.keySet().toArray(new String[0]);
+			Arrays.sort(this.names);
 		}
 
 		public ValueType get(String name) {
@@ -136,6 +141,28 @@ public class ValueType {
 			return this.fields.entrySet();
 		}
 
+		public int size() {
+			return this.names.length;
+		}
+
+		/**
+		 * @return The name of the field stored at the given index of the record
+		 *         layout
+		 */
+		public String name(int index) {
+			return this.names[index];
+		}
+
+		/**
+		 * @return The index of the field in the record layout
+		 */
+		public int indexOf(String name) {
+			var index = Arrays.binarySearch(this.names, name);
+			if (index < 0)
+				throw new RuntimeException("No such field: " + name);
+			return index;
+		}
+
 		@Override
 		public int hashCode() {
 			final int prime = 31;
@@ -213,6 +240,12 @@ public class ValueType {
 		this.alias = custom;
 	}
 
+	// Primitive types have no parameters so a single instance is shared
+	private static final ValueType VOID = new ValueType(Kind.Void);
+	private static final ValueType BOOLEAN = new ValueType(Kind.Boolean);
+	private static final ValueType NUMBER = new ValueType(Kind.Number);
+	private static final ValueType STRING = new ValueType(Kind.String);
+
 	public Kind getKind() {
 		return this.kind;
 	}
@@ -272,19 +305,19 @@ public class ValueType {
 	}
 
 	public static ValueType createVoid() {
-		return new ValueType(Kind.Void);
+		return VOID;
 	}
 
 	public static ValueType createBoolean() {
-		return new ValueType(Kind.Boolean);
+		return BOOLEAN;
 	}
 
 	public static ValueType createNumber() {
-		return new ValueType(Kind.Number);
+		return NUMBER;
 	}
 
 	public static ValueType createString() {
-		return new ValueType(Kind.String);
+		return STRING;
 	}
 
 	public static ValueType createReference(ValueType target) {
@@ -15,6 +15,10 @@ public class Annotations {
         annotations.put(key, value);
     }
 
+    public void putAll(Annotations other) {
+        this.annotations.putAll(other.annotations);
+    }
+
     public <T> T get(AnnotationKey<T> key) {
         return this.tryGet(key).get();
     }
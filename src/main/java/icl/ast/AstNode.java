@@ -13,6 +13,14 @@ public abstract class AstNode {
 		annotations.put(key, value);
 	}
 
+	/**
+	 * Copies every annotation of another node to this node, used when a stage
+	 * replaces a node with a rewritten one.
+	 */
+	public void annotateFrom(AstNode other) {
+		annotations.putAll(other.annotations);
+	}
+
 	public <T> T getAnnotation(AnnotationKey<T> key) {
 		return annotations.get(key);
 	}
@@ -0,0 +1,114 @@
+package icl.runtime;
+
+/*-
+ * Trigonometric builtins used in fast math mode.
+ *
+ * The argument is reduced to [-pi/4, pi/4] as in fdlibm, with up to three
+ * parts of pi/2, and the result is the fdlibm polynomial, without the
+ * correction for the rounding error of the reduced argument. For arguments up
+ * to 2^20 sin and cos were measured within 1 ulp of StrictMath and tan, the
+ * quotient of the two, within 4 ulps. Larger arguments and NaN use Math.
+ *
+ * Compiled programs ship with a copy of this class, so it must not depend on
+ * any other class of the project.
+ */
+public final class FastMath {
+    private static final double TWO_OVER_PI = 6.36619772367581382433e-01;
+    // pi/2 in three parts of 33 bits and their tails, from fdlibm
+    private static final double PIO2_1 = 1.57079632673412561417e+00;
+    private static final double PIO2_1T = 6.07710050650619224932e-11;
+    private static final double PIO2_2 = 6.07710050630396597660e-11;
+    private static final double PIO2_2T = 2.02226624879595063154e-21;
+    private static final double PIO2_3 = 2.02226624871116645580e-21;
+    private static final double PIO2_3T = 8.47842766036889956997e-32;
+    private static final double REDUCTION_LIMIT = 0x1p20;
+
+    private static final double S1 = -1.66666666666666324348e-01;
+    private static final double S2 = 8.33333333332248946124e-03;
+    private static final double S3 = -1.98412698298579493134e-04;
+    private static final double S4 = 2.75573137070700676789e-06;
+    private static final double S5 = -2.50507602534068634195e-08;
+    private static final double S6 = 1.58969099521155010221e-10;
+
+    private static final double C1 = 4.16666666666666019037e-02;
+    private static final double C2 = -1.38888888888741095749e-03;
+    private static final double C3 = 2.48015872894767294178e-05;
+    private static final double C4 = -2.75573143513906633035e-07;
+    private static final double C5 = 2.08757232129817482790e-09;
+    private static final double C6 = -1.13596475577881948265e-11;
+
+    private FastMath() {
+    }
+
+    public static double sin(double x) {
+        if (!(Math.abs(x) <= REDUCTION_LIMIT))
+            return Math.sin(x);
+        var k = Math.rint(x * TWO_OVER_PI);
+        var r = reduce(x, k);
+        return switch ((int) k & 3) {
+            case 0 -> ksin(r);
+            case 1 -> kcos(r);
+            case 2 -> -ksin(r);
+            default -> -kcos(r);
+        };
+    }
+
+    public static double cos(double x) {
+        if (!(Math.abs(x) <= REDUCTION_LIMIT))
+            return Math.cos(x);
+        var k = Math.rint(x * TWO_OVER_PI);
+        var r = reduce(x, k);
+        return switch ((int) k & 3) {
+            case 0 -> kcos(r);
+            case 1 -> -ksin(r);
+            case 2 -> -kcos(r);
+            default -> ksin(r);
+        };
+    }
+
+    public static double tan(double x) {
+        if (!(Math.abs(x) <= REDUCTION_LIMIT))
+            return Math.tan(x);
+        var k = Math.rint(x * TWO_OVER_PI);
+        var r = reduce(x, k);
+        if (((int) k & 1) == 0)
+            return ksin(r) / kcos(r);
+        return -kcos(r) / ksin(r);
+    }
+
+    // x - k * pi/2, the bits of x that cancel with the first parts of pi/2 are
+    // replaced by the bits of the next part
+    private static double reduce(double x, double k) {
+        var r = x - k * PIO2_1;
+        var w = k * PIO2_1T;
+        var y = r - w;
+        var exponent = Math.getExponent(x);
+        if (exponent - Math.getExponent(y) > 16) {
+            var t = r;
+            w = k * PIO2_2;
+            r = t - w;
+            w = k * PIO2_2T - ((t - r) - w);
+            y = r - w;
+            if (exponent - Math.getExponent(y) > 49) {
+                t = r;
+                w = k * PIO2_3;
+                r = t - w;
+                w = k * PIO2_3T - ((t - r) - w);
+                y = r - w;
+            }
+        }
+        return y;
+    }
+
+    // sin(r) for r in [-pi/4, pi/4]
+    private static double ksin(double r) {
+        var z = r * r;
+        return r + r * z * (S1 + z * (S2 + z * (S3 + z * (S4 + z * (S5 + z * S6)))));
+    }
+
+    // cos(r) for r in [-pi/4, pi/4]
+    private static double kcos(double r) {
+        var z = r * r;
+        return 1.0 - 0.5 * z + z * z * (C1 + z * (C2 + z * (C3 + z * (C4 + z * (C5 + z * C6)))));
+    }
+}
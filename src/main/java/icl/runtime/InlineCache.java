@@ -0,0 +1,92 @@
+package icl.runtime;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/*-
+ * Call site of a call to a function value in a compiled program.
+ *
+ * The call site starts unlinked. The first call links it to the call method of
+ * the class of the function, guarded by a check of the class, so the JIT can
+ * inline it like a direct call. Calls with functions of other classes add
+ * guards in front of the previous ones, up to MAX_CLASSES, after that the site
+ * calls through the interface of the function type.
+ *
+ * Compiled programs ship with a copy of this class, so it must not depend on
+ * any other class of the project.
+ */
+public final class InlineCache extends MutableCallSite {
+    // Classes checked before calling through the interface
+    public static final int MAX_CLASSES = 4;
+
+    private static final MethodHandle IS_CLASS;
+    private static final MethodHandle MISS;
+
+    static {
+        try {
+            var lookup = MethodHandles.lookup();
+            IS_CLASS = lookup.findStatic(InlineCache.class, "isClass",
+                    MethodType.methodType(boolean.class, Class.class, Object.class));
+            MISS = lookup.findVirtual(InlineCache.class, "miss",
+                    MethodType.methodType(Object.class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final MethodHandles.Lookup lookup;
+    private final String name;
+    private int classes;
+
+    private InlineCache(MethodHandles.Lookup lookup, String name, MethodType type) {
+        super(type);
+        this.lookup = lookup;
+        this.name = name;
+        this.classes = 0;
+        this.setTarget(this.unlinked());
+    }
+
+    /**
+     * Bootstrap method of the invokedynamic instructions of calls, the first
+     * parameter of the call is the function.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type) {
+        return new InlineCache(lookup, name, type);
+    }
+
+    private static boolean isClass(Class<?> expected, Object function) {
+        return function.getClass() == expected;
+    }
+
+    private MethodHandle unlinked() {
+        return MISS.bindTo(this)
+                .asCollector(Object[].class, this.type().parameterCount())
+                .asType(this.type());
+    }
+
+    private Object miss(Object[] arguments) throws Throwable {
+        var target = this.link(arguments[0].getClass());
+        return target.invokeWithArguments(arguments);
+    }
+
+    private synchronized MethodHandle link(Class<?> function) throws ReflectiveOperationException {
+        var type = this.type();
+        var method_type = type.dropParameterTypes(0, 1);
+        if (this.classes >= MAX_CLASSES) {
+            var target = this.lookup.findVirtual(type.parameterType(0), this.name, method_type);
+            this.setTarget(target);
+            return target;
+        }
+
+        var direct = this.lookup.findVirtual(function, this.name, method_type).asType(type);
+        var test = MethodHandles.dropArguments(
+                IS_CLASS.bindTo(function).asType(MethodType.methodType(boolean.class, type.parameterType(0))),
+                1, method_type.parameterList());
+        this.setTarget(MethodHandles.guardWithTest(test, direct, this.getTarget()));
+        this.classes += 1;
+        return direct;
+    }
+}
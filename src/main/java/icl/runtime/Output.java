@@ -0,0 +1,135 @@
+package icl.runtime;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/*-
+ * Output of print, println and printd for every engine and for compiled programs.
+ *
+ * Writes go to a byte buffer that is only written to the stream when it is
+ * full, when flush is called and when the JVM exits. Unlike System.out it does
+ * not lock or check for a flush on every write, so it must only be used from
+ * one thread.
+ *
+ * Compiled programs ship with a copy of this class, so it must not depend on
+ * any other class of the project. The initial configuration is read from the
+ * system properties:
+ *  calc.output.buffer - Size of the buffer in bytes.
+ *  calc.output.flush  - "line" to also flush after every newline, for interactive use.
+ */
+public final class Output {
+    public static final String BUFFER_PROPERTY = "calc.output.buffer";
+    public static final String FLUSH_PROPERTY = "calc.output.flush";
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    private static final String NEWLINE = System.lineSeparator();
+
+    private static OutputStream stream;
+    private static byte[] buffer;
+    private static int position;
+    private static boolean lineFlush;
+
+    static {
+        configure(
+                new FileOutputStream(FileDescriptor.out),
+                Integer.getInteger(BUFFER_PROPERTY, DEFAULT_BUFFER_SIZE),
+                "line".equals(System.getProperty(FLUSH_PROPERTY)));
+        Runtime.getRuntime().addShutdownHook(new Thread(Output::flush));
+    }
+
+    private Output() {
+    }
+
+    /**
+     * Flushes the current stream and starts writing to the given one.
+     *
+     * @param out       The stream to write to
+     * @param size      The size of the buffer in bytes
+     * @param lineFlush If every newline also flushes the stream
+     */
+    public static void configure(OutputStream out, int size, boolean lineFlush) {
+        if (stream != null)
+            flush();
+        Output.stream = out;
+        Output.buffer = new byte[Math.max(size, 1)];
+        Output.position = 0;
+        Output.lineFlush = lineFlush;
+    }
+
+    /**
+     * Flushes the current stream and starts writing to the given one, keeping
+     * the rest of the configuration.
+     *
+     * @return The previous stream
+     */
+    public static OutputStream redirect(OutputStream out) {
+        flush();
+        var previous = stream;
+        stream = out;
+        return previous;
+    }
+
+    public static void print(String string) {
+        var length = string.length();
+        for (var i = 0; i < length; ++i) {
+            var c = string.charAt(i);
+            if (c >= 0x80) {
+                write(string.substring(i).getBytes());
+                return;
+            }
+            if (position == buffer.length)
+                drain();
+            buffer[position++] = (byte) c;
+        }
+    }
+
+    public static void println(String string) {
+        print(string);
+        println();
+    }
+
+    public static void println() {
+        print(NEWLINE);
+        if (lineFlush)
+            flush();
+    }
+
+    public static void flush() {
+        drain();
+        try {
+            stream.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void write(byte[] bytes) {
+        if (bytes.length > buffer.length - position) {
+            drain();
+            if (bytes.length > buffer.length) {
+                try {
+                    stream.write(bytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private static void drain() {
+        if (position == 0)
+            return;
+        try {
+            stream.write(buffer, 0, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+    }
+}
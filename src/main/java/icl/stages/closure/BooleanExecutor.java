@@ -0,0 +1,11 @@
+package icl.stages.closure;
+
+import icl.stages.interpretor.Frame;
+
+/**
+ * A compiled node of type Boolean that evaluates to an unboxed value.
+ */
+@FunctionalInterface
+public interface BooleanExecutor {
+    boolean execute(Frame frame);
+}
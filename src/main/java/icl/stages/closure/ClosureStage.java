@@ -0,0 +1,62 @@
+package icl.stages.closure;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import icl.ast.AstNode;
+import icl.pipeline.PipelineStage;
+import icl.stages.interpretor.Frame;
+import icl.stages.interpretor.value.Value;
+import icl.stages.resolve.ResolverStage;
+
+/*-
+ * Compiles the annotated AST once into a tree of executors and runs it.
+ *
+ * Every executor is already specialized for the types of its operands and for
+ * its operator, so no visitor or annotation lookups happen while running.
+ * Nodes of type Number and Boolean also have an unboxed executor that is used
+ * when the parent node consumes the value directly.
+ *
+ * Must run after the ResolverStage.
+ */
+public class ClosureStage implements PipelineStage<AstNode, Value> {
+
+    @Override
+    public Value process(AstNode input) {
+        var executor = compile(input);
+        var frame = new Frame(null, input.getAnnotation(ResolverStage.ROOT_FRAME_KEY));
+        return executor.execute(frame);
+    }
+
+    static Executor compile(AstNode node) {
+        var visitor = new Visitor();
+        node.accept(visitor);
+        assert visitor.executor != null : "Compilation of node " + node + " did not produce an executor";
+        return visitor.executor;
+    }
+
+    static NumberExecutor compileNumber(AstNode node) {
+        var visitor = new Visitor();
+        node.accept(visitor);
+        if (visitor.number != null)
+            return visitor.number;
+        var executor = visitor.executor;
+        return frame -> executor.execute(frame).getNumber().getValue();
+    }
+
+    static BooleanExecutor compileBoolean(AstNode node) {
+        var visitor = new Visitor();
+        node.accept(visitor);
+        if (visitor.bool != null)
+            return visitor.bool;
+        var executor = visitor.executor;
+        return frame -> executor.execute(frame).getBoolean().getValue();
+    }
+
+    static Executor[] compileAll(List<AstNode> nodes) {
+        var executors = new ArrayList<Executor>();
+        for (var node : nodes)
+            executors.add(compile(node));
+        return executors.toArray(new Executor[0]);
+    }
+}
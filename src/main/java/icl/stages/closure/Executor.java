@@ -0,0 +1,10 @@
+package icl.stages.closure;
+
+import icl.stages.interpretor.Code;
+
+/**
+ * A compiled node that evaluates to a boxed value.
+ */
+@FunctionalInterface
+public interface Executor extends Code {
+}
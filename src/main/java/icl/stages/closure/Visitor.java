@@ -0,0 +1,432 @@
+package icl.stages.closure;
+
+import icl.ValueType;
+import icl.ast.AstAssign;
+import icl.ast.AstBinOp;
+import icl.ast.AstBool;
+import icl.ast.AstBuiltin;
+import icl.ast.AstCall;
+import icl.ast.AstDecl;
+import icl.ast.AstEmptyNode;
+import icl.ast.AstField;
+import icl.ast.AstFn;
+import icl.ast.AstIf;
+import icl.ast.AstLoop;
+import icl.ast.AstNew;
+import icl.ast.AstNum;
+import icl.ast.AstPrint;
+import icl.ast.AstRecord;
+import icl.ast.AstScope;
+import icl.ast.AstStr;
+import icl.ast.AstTypeAlias;
+import icl.ast.AstUnaryOp;
+import icl.ast.AstVar;
+import icl.ast.AstVisitor;
+import icl.runtime.FastMath;
+import icl.runtime.Output;
+import icl.stages.interpretor.value.RefValue;
+import icl.stages.interpretor.value.Value;
+import icl.stages.optimize.FastMathStage;
+import icl.stages.resolve.ResolverStage;
+import icl.stages.tiered.TieredStage;
+import icl.stages.typecheck.TypeCheckStage;
+
+class Visitor implements AstVisitor {
+
+	Executor executor;
+	NumberExecutor number;
+	BooleanExecutor bool;
+
+	public Visitor() {
+		this.executor = null;
+		this.number = null;
+		this.bool = null;
+	}
+
+	private void number(NumberExecutor number) {
+		this.number = number;
+		this.executor = frame -> Value.createNumber(number.execute(frame));
+	}
+
+	private void bool(BooleanExecutor bool) {
+		this.bool = bool;
+		this.executor = frame -> Value.createBoolean(bool.execute(frame));
+	}
+
+	@Override
+	public void acceptNum(AstNum node) {
+		var value = node.value;
+		this.number(frame -> value);
+	}
+
+	@Override
+	public void acceptBool(AstBool node) {
+		var value = node.value;
+		this.bool(frame -> value);
+	}
+
+	@Override
+	public void acceptStr(AstStr node) {
+		var value = node.value;
+		this.executor = frame -> Value.createString(value);
+	}
+
+	@Override
+	public void acceptBinOp(AstBinOp node) {
+		var operand_type = node.left.getAnnotation(TypeCheckStage.TYPE_KEY);
+		switch (operand_type.getKind()) {
+			case Boolean -> {
+				var left = ClosureStage.compileBoolean(node.left);
+				var right = ClosureStage.compileBoolean(node.right);
+				switch (node.kind) {
+					case CMP -> this.bool(frame -> left.execute(frame) == right.execute(frame));
+					case LAND -> this.bool(frame -> left.execute(frame) && right.execute(frame));
+					case LOR -> this.bool(frame -> left.execute(frame) || right.execute(frame));
+					default -> throw new IllegalStateException();
+				}
+			}
+			case Number -> {
+				var product = FastMathStage.fusedProduct(node);
+				if (product != null) {
+					var x = ClosureStage.compileNumber(product.left);
+					var y = ClosureStage.compileNumber(product.right);
+					if (product == node.right) {
+						var z = ClosureStage.compileNumber(node.left);
+						this.number(frame -> {
+							var c = z.execute(frame);
+							return Math.fma(x.execute(frame), y.execute(frame), c);
+						});
+						return;
+					}
+					var z = ClosureStage.compileNumber(node.right);
+					if (node.kind == AstBinOp.Kind.SUB)
+						this.number(frame -> Math.fma(x.execute(frame), y.execute(frame), -z.execute(frame)));
+					else
+						this.number(frame -> Math.fma(x.execute(frame), y.execute(frame), z.execute(frame)));
+					return;
+				}
+				var left = ClosureStage.compileNumber(node.left);
+				var right = ClosureStage.compileNumber(node.right);
+				switch (node.kind) {
+					case ADD -> this.number(frame -> left.execute(frame) + right.execute(frame));
+					case SUB -> this.number(frame -> left.execute(frame) - right.execute(frame));
+					case MUL -> this.number(frame -> left.execute(frame) * right.execute(frame));
+					case DIV -> this.number(frame -> left.execute(frame) / right.execute(frame));
+					case IDIV -> this.number(frame -> Math.floor(left.execute(frame) / right.execute(frame)));
+					case CMP -> this.bool(frame -> left.execute(frame) == right.execute(frame));
+					case GT -> this.bool(frame -> left.execute(frame) > right.execute(frame));
+					case GTE -> this.bool(frame -> left.execute(frame) >= right.execute(frame));
+					case LT -> this.bool(frame -> left.execute(frame) < right.execute(frame));
+					case LTE -> this.bool(frame -> left.execute(frame) <= right.execute(frame));
+					default -> throw new IllegalStateException();
+				}
+			}
+			case String -> {
+				var left = ClosureStage.compile(node.left);
+				var right = ClosureStage.compile(node.right);
+				switch (node.kind) {
+					case ADD -> this.executor = frame -> Value.createString(
+							left.execute(frame).getString().getValue() + right.execute(frame).getString().getValue());
+					case CMP -> this.bool(frame -> left.execute(frame).getString().getValue()
+							.equals(right.execute(frame).getString().getValue()));
+					default -> throw new IllegalStateException();
+				}
+			}
+			default -> throw new IllegalStateException();
+		}
+	}
+
+	@Override
+	public void acceptUnaryOp(AstUnaryOp node) {
+		var operand_type = node.expr.getAnnotation(TypeCheckStage.TYPE_KEY);
+		switch (operand_type.getKind()) {
+			case Number -> {
+				var operand = ClosureStage.compileNumber(node.expr);
+				switch (node.kind) {
+					case POS -> this.number(operand);
+					case NEG -> this.number(frame -> -operand.execute(frame));
+					default -> throw new IllegalStateException();
+				}
+			}
+			case Boolean -> {
+				var operand = ClosureStage.compileBoolean(node.expr);
+				switch (node.kind) {
+					case LNOT -> this.bool(frame -> !operand.execute(frame));
+					default -> throw new IllegalStateException();
+				}
+			}
+			case Reference -> {
+				var operand = ClosureStage.compile(node.expr);
+				switch (node.kind) {
+					case DEREF -> this.executor = frame -> operand.execute(frame).getReference().getValue();
+					default -> throw new IllegalStateException();
+				}
+			}
+			default -> throw new IllegalStateException();
+		}
+	}
+
+	@Override
+	public void acceptDecl(AstDecl node) {
+		var slot = node.getAnnotation(ResolverStage.SLOT_KEY);
+		var index = slot.index;
+		var value = ClosureStage.compile(node.value);
+		if (slot.boxed) {
+			this.executor = frame -> {
+				frame.slots[index] = Value.createReference(value.execute(frame));
+				return Value.createVoid();
+			};
+			return;
+		}
+		this.executor = frame -> {
+			frame.slots[index] = value.execute(frame);
+			return Value.createVoid();
+		};
+	}
+
+	@Override
+	public void acceptScope(AstScope node) {
+		var stmts = ClosureStage.compileAll(node.stmts);
+		var expr = ClosureStage.compile(node.expr);
+		this.executor = frame -> {
+			for (var stmt : stmts)
+				stmt.execute(frame);
+			return expr.execute(frame);
+		};
+	}
+
+	@Override
+	public void acceptEmptyNode(AstEmptyNode node) {
+		this.executor = frame -> Value.createVoid();
+	}
+
+	@Override
+	public void acceptVar(AstVar node) {
+		var slot = node.getAnnotation(ResolverStage.SLOT_KEY);
+		var index = slot.index;
+		if (slot.boxed) {
+			var depth = slot.depth;
+			this.executor = frame -> frame.up(depth).slots[index].getReference().getValue();
+			return;
+		}
+		this.executor = switch (slot.depth) {
+			case 0 -> frame -> frame.slots[index];
+			case 1 -> frame -> frame.parent.slots[index];
+			case 2 -> frame -> frame.parent.parent.slots[index];
+			default -> {
+				var depth = slot.depth;
+				yield frame -> frame.up(depth).slots[index];
+			}
+		};
+	}
+
+	@Override
+	public void acceptCall(AstCall call) {
+		var function = ClosureStage.compile(call.function);
+		var arguments = ClosureStage.compileAll(call.arguments);
+		this.executor = frame -> {
+			var fnvalue = function.execute(frame).getFunction();
+			var callee = fnvalue.createFrame();
+			for (var i = 0; i < arguments.length; ++i)
+				callee.slots[i + 1] = arguments[i].execute(frame);
+			return fnvalue.evaluate(callee);
+		};
+	}
+
+	@Override
+	public void acceptIf(AstIf astIf) {
+		var count = astIf.conditionals.size();
+		var conditions = new BooleanExecutor[count];
+		var expressions = new Executor[count];
+		for (var i = 0; i < count; ++i) {
+			conditions[i] = ClosureStage.compileBoolean(astIf.conditionals.get(i).condition);
+			expressions[i] = ClosureStage.compile(astIf.conditionals.get(i).expression);
+		}
+		var fallthrough = ClosureStage.compile(astIf.fallthrough);
+
+		if (count == 1) {
+			var condition = conditions[0];
+			var expression = expressions[0];
+			this.executor = frame -> condition.execute(frame) ? expression.execute(frame) : fallthrough.execute(frame);
+			return;
+		}
+
+		this.executor = frame -> {
+			for (var i = 0; i < conditions.length; ++i)
+				if (conditions[i].execute(frame))
+					return expressions[i].execute(frame);
+			return fallthrough.execute(frame);
+		};
+	}
+
+	@Override
+	public void acceptLoop(AstLoop loop) {
+		var condition = ClosureStage.compileBoolean(loop.condition);
+		var body = ClosureStage.compile(loop.body);
+		this.executor = frame -> {
+			while (condition.execute(frame))
+				body.execute(frame);
+			return Value.createVoid();
+		};
+	}
+
+	@Override
+	public void acceptAssign(AstAssign assign) {
+		var slot = assign.getAnnotation(ResolverStage.SLOT_KEY);
+		var value = ClosureStage.compile(assign.value);
+		this.executor = frame -> {
+			var new_value = value.execute(frame);
+			// Assigning to a reference stores the value in the reference itself
+			if (frame.get(slot) instanceof RefValue ref)
+				ref.setValue(new_value);
+			else
+				frame.set(slot, new_value);
+			return Value.createVoid();
+		};
+	}
+
+	@Override
+	public void acceptPrint(AstPrint print) {
+		var type = print.expr.getAnnotation(TypeCheckStage.TYPE_KEY);
+		if (print.nodecimal && type.isKind(ValueType.Kind.Number)) {
+			var number = ClosureStage.compileNumber(print.expr);
+			var newline = print.newline;
+			this.executor = frame -> {
+				var text = String.valueOf((int) number.execute(frame));
+				if (newline)
+					Output.println(text);
+				else
+					Output.print(text);
+				return Value.createVoid();
+			};
+			return;
+		}
+
+		var expr = ClosureStage.compile(print.expr);
+		if (print.newline) {
+			this.executor = frame -> {
+				Output.println(expr.execute(frame).toString());
+				return Value.createVoid();
+			};
+		} else {
+			this.executor = frame -> {
+				Output.print(expr.execute(frame).toString());
+				return Value.createVoid();
+			};
+		}
+	}
+
+	@Override
+	public void acceptNew(AstNew anew) {
+		var value = ClosureStage.compile(anew.value);
+		this.executor = frame -> Value.createReference(value.execute(frame));
+	}
+
+	@Override
+	public void acceptFn(AstFn fn) {
+		var type = fn.getAnnotation(TypeCheckStage.TYPE_KEY);
+		int size = fn.getAnnotation(ResolverStage.FRAME_KEY);
+		var captures = fn.getAnnotation(ResolverStage.CAPTURES_KEY);
+		var body = ClosureStage.compile(fn.body);
+		var tier = fn.tryGetAnnotation(TieredStage.TIER_KEY);
+		if (tier.isPresent()) {
+			// Every function value counts its own calls
+			var compilable = tier.get();
+			this.executor = frame -> Value.createFunction(type, frame.capture(captures), size, compilable.code(body));
+			return;
+		}
+		this.executor = frame -> Value.createFunction(type, frame.capture(captures), size, body);
+	}
+
+	@Override
+	public void acceptRecord(AstRecord record) {
+		var type = record.getAnnotation(TypeCheckStage.TYPE_KEY);
+		var layout = type.getRecord();
+		var names = record.fields.keySet().toArray(new String[0]);
+		var indices = new int[names.length];
+		var values = new Executor[names.length];
+		for (var i = 0; i < names.length; ++i) {
+			indices[i] = layout.indexOf(names[i]);
+			values[i] = ClosureStage.compile(record.fields.get(names[i]));
+		}
+		this.executor = frame -> {
+			var fields = new Value[indices.length];
+			for (var i = 0; i < indices.length; ++i)
+				fields[indices[i]] = values[i].execute(frame);
+			return Value.createRecord(type, fields);
+		};
+	}
+
+	@Override
+	public void acceptField(AstField field) {
+		var record = ClosureStage.compile(field.value);
+		int index = field.getAnnotation(ResolverStage.FIELD_KEY);
+		this.executor = frame -> record.execute(frame).getRecord().getField(index);
+	}
+
+	@Override
+	public void acceptTypeAlias(AstTypeAlias typeAlias) {
+		this.executor = frame -> Value.createVoid();
+	}
+
+	@Override
+	public void acceptBuiltin(AstBuiltin builtin) {
+		var args = new NumberExecutor[builtin.args.size()];
+		for (var i = 0; i < args.length; ++i)
+			args[i] = ClosureStage.compileNumber(builtin.args.get(i));
+
+		switch (builtin.builtin) {
+			case ABS -> {
+				var x = args[0];
+				this.number(frame -> Math.abs(x.execute(frame)));
+			}
+			case COS -> {
+				var x = args[0];
+				if (FastMathStage.isFast(builtin))
+					this.number(frame -> FastMath.cos(x.execute(frame)));
+				else
+					this.number(frame -> Math.cos(x.execute(frame)));
+			}
+			case MAX -> {
+				var x = args[0];
+				var y = args[1];
+				this.number(frame -> Math.max(x.execute(frame), y.execute(frame)));
+			}
+			case MIN -> {
+				var x = args[0];
+				var y = args[1];
+				this.number(frame -> Math.min(x.execute(frame), y.execute(frame)));
+			}
+			case PI -> {
+				this.number(frame -> Math.PI);
+			}
+			case POW -> {
+				var x = args[0];
+				var y = args[1];
+				this.number(frame -> Math.pow(x.execute(frame), y.execute(frame)));
+			}
+			case SIN -> {
+				var x = args[0];
+				if (FastMathStage.isFast(builtin))
+					this.number(frame -> FastMath.sin(x.execute(frame)));
+				else
+					this.number(frame -> Math.sin(x.execute(frame)));
+			}
+			case SQRT -> {
+				var x = args[0];
+				this.number(frame -> Math.sqrt(x.execute(frame)));
+			}
+			case TAN -> {
+				var x = args[0];
+				if (FastMathStage.isFast(builtin))
+					this.number(frame -> FastMath.tan(x.execute(frame)));
+				else
+					this.number(frame -> Math.tan(x.execute(frame)));
+			}
+			case RAND -> {
+				this.number(frame -> Math.random());
+			}
+		}
+	}
+
+}
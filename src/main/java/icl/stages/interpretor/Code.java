@@ -0,0 +1,12 @@
+package icl.stages.interpretor;
+
+import icl.stages.interpretor.value.Value;
+
+/**
+ * Executable body of a function.
+ * Each execution engine provides its own implementation.
+ */
+@FunctionalInterface
+public interface Code {
+    Value execute(Frame frame);
+}
@@ -0,0 +1,45 @@
+package icl.stages.interpretor;
+
+import java.util.List;
+
+import icl.stages.interpretor.value.Value;
+import icl.stages.resolve.Capture;
+import icl.stages.resolve.Slot;
+
+public class Frame {
+    public final Frame parent;
+    public final Value[] slots;
+
+    public Frame(Frame parent, int size) {
+        this.parent = parent;
+        this.slots = new Value[size];
+    }
+
+    public Frame up(int depth) {
+        var frame = this;
+        for (var i = 0; i < depth; ++i)
+            frame = frame.parent;
+        return frame;
+    }
+
+    public Value get(Slot slot) {
+        return this.up(slot.depth).slots[slot.index];
+    }
+
+    public void set(Slot slot, Value value) {
+        this.up(slot.depth).slots[slot.index] = value;
+    }
+
+    /**
+     * Creates the closure of a function value created in this frame.
+     *
+     * @param captures The free variables of the function
+     * @return The frame with a copy of every free variable
+     */
+    public Frame capture(List<Capture> captures) {
+        var closure = new Frame(null, captures.size());
+        for (var i = 0; i < captures.size(); ++i)
+            closure.slots[i] = this.get(captures.get(i).slot);
+        return closure;
+    }
+}
@@ -1,24 +1,25 @@
 package icl.stages.interpretor;
 
-import icl.Environment;
 import icl.ast.AstNode;
 import icl.pipeline.PipelineStage;
 import icl.stages.interpretor.value.Value;
+import icl.stages.resolve.ResolverStage;
 
 public class InterpretorStage implements PipelineStage<AstNode, Value> {
 
 	@Override
 	public Value process(AstNode input) {
-		var env = new Environment<Value>();
-		var output = interpret(env, input);
+		var frame = new Frame(null, input.getAnnotation(ResolverStage.ROOT_FRAME_KEY));
+		var output = interpret(frame, input);
 		return output;
 	}
 
-	public static Value interpret(Environment<Value> env, AstNode node) {
-		var visitor = new Visitor(env);
+	public static Value interpret(Frame frame, AstNode node) {
+		var visitor = new Visitor(frame);
 		node.accept(visitor);
-		assert visitor.value != null : "Evaluation of node " + node + " did not produce a value";
-		return visitor.value;
+		var value = visitor.value();
+		assert value != null : "Evaluation of node " + node + " did not produce a value";
+		return value;
 	}
 
 }
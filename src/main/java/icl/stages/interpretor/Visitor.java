@@ -1,8 +1,6 @@
 package icl.stages.interpretor;
 
-import java.util.HashMap;
-
-import icl.Environment;
+import icl.ValueType;
 import icl.ast.AstAssign;
 import icl.ast.AstBinOp;
 import icl.ast.AstBool;
@@ -18,38 +16,108 @@ import icl.ast.AstFn;
 import icl.ast.AstIf;
 import icl.ast.AstLoop;
 import icl.ast.AstNew;
+import icl.ast.AstNode;
 import icl.ast.AstNum;
 import icl.ast.AstPrint;
 import icl.ast.AstRecord;
 import icl.ast.AstUnaryOp;
 import icl.ast.AstVar;
 import icl.ast.AstVisitor;
+import icl.runtime.FastMath;
+import icl.runtime.Output;
+import icl.stages.interpretor.value.RefValue;
 import icl.stages.interpretor.value.Value;
+import icl.stages.optimize.FastMathStage;
+import icl.stages.resolve.ResolverStage;
 import icl.stages.typecheck.TypeCheckStage;
 
 class Visitor implements AstVisitor {
 
-	private final Environment<Value> environment;
-	Value value;
+	private static final int BOXED = 0;
+	private static final int NUMBER = 1;
+	private static final int BOOLEAN = 2;
+
+	private final Frame frame;
+	// Result of the last evaluated node, numbers and booleans are left unboxed
+	// and are only boxed when a Value is required.
+	private int kind;
+	private Value value;
+	private double number;
+	private boolean bool;
 
-	public Visitor(Environment<Value> environment) {
-		this.environment = environment;
+	public Visitor(Frame frame) {
+		this.frame = frame;
+		this.kind = BOXED;
 		this.value = null;
 	}
 
+	private void result(Value value) {
+		this.kind = BOXED;
+		this.value = value;
+	}
+
+	private void result(double number) {
+		this.kind = NUMBER;
+		this.number = number;
+	}
+
+	private void result(boolean bool) {
+		this.kind = BOOLEAN;
+		this.bool = bool;
+	}
+
+	Value value() {
+		return switch (this.kind) {
+			case NUMBER -> Value.createNumber(this.number);
+			case BOOLEAN -> Value.createBoolean(this.bool);
+			default -> this.value;
+		};
+	}
+
+	double number() {
+		if (this.kind == NUMBER)
+			return this.number;
+		return this.value.getNumber().getValue();
+	}
+
+	boolean bool() {
+		if (this.kind == BOOLEAN)
+			return this.bool;
+		return this.value.getBoolean().getValue();
+	}
+
+	/*
+	 * Nodes evaluated in the same frame reuse this visitor, the result must be
+	 * read before evaluating the next node.
+	 */
+	private Value eval(AstNode node) {
+		node.accept(this);
+		return this.value();
+	}
+
+	private double evalNumber(AstNode node) {
+		node.accept(this);
+		return this.number();
+	}
+
+	private boolean evalBoolean(AstNode node) {
+		node.accept(this);
+		return this.bool();
+	}
+
 	@Override
 	public void acceptNum(AstNum node) {
-		this.value = Value.createNumber(node.value);
+		this.result(node.value);
 	}
 
 	@Override
 	public void acceptBool(AstBool node) {
-		this.value = Value.createBoolean(node.value);
+		this.result(node.value);
 	}
 
 	@Override
 	public void acceptStr(AstStr str) {
-		this.value = Value.createString(str.value);
+		this.result(Value.createString(str.value));
 	}
 
 	@Override
@@ -57,43 +125,55 @@ class Visitor implements AstVisitor {
 		var operand_type = node.left.getAnnotation(TypeCheckStage.TYPE_KEY);
 		switch (operand_type.getKind()) {
 			case Boolean -> {
-				var left = InterpretorStage.interpret(this.environment, node.left).getBoolean().getValue();
-				var right = InterpretorStage.interpret(this.environment, node.right).getBoolean().getValue();
-				var value = switch (node.kind) {
-					case CMP -> Value.createBoolean(left == right);
-					case LAND -> Value.createBoolean(left && right);
-					case LOR -> Value.createBoolean(left || right);
+				// The right operand is only evaluated if it decides the result
+				var left = this.evalBoolean(node.left);
+				switch (node.kind) {
+					case CMP -> this.result(left == this.evalBoolean(node.right));
+					case LAND -> this.result(left && this.evalBoolean(node.right));
+					case LOR -> this.result(left || this.evalBoolean(node.right));
 					default -> throw new IllegalStateException();
-				};
-				this.value = value;
+				}
 			}
 			case Number -> {
-				var left = InterpretorStage.interpret(this.environment, node.left).getNumber().getValue();
-				var right = InterpretorStage.interpret(this.environment, node.right).getNumber().getValue();
-				var value = switch (node.kind) {
-					case ADD -> Value.createNumber(left + right);
-					case SUB -> Value.createNumber(left - right);
-					case MUL -> Value.createNumber(left * right);
-					case DIV -> Value.createNumber(left / right);
-					case IDIV -> Value.createNumber(Math.floor(left / right));
-					case CMP -> Value.createBoolean(left == right);
-					case GT -> Value.createBoolean(left > right);
-					case GTE -> Value.createBoolean(left >= right);
-					case LT -> Value.createBoolean(left < right);
-					case LTE -> Value.createBoolean(left <= right);
+				var product = FastMathStage.fusedProduct(node);
+				if (product != null) {
+					if (product == node.right) {
+						var z = this.evalNumber(node.left);
+						var x = this.evalNumber(product.left);
+						var y = this.evalNumber(product.right);
+						this.result(Math.fma(x, y, z));
+						return;
+					}
+					var x = this.evalNumber(product.left);
+					var y = this.evalNumber(product.right);
+					var z = this.evalNumber(node.right);
+					this.result(Math.fma(x, y, node.kind == AstBinOp.Kind.SUB ? -z : z));
+					return;
+				}
+				var left = this.evalNumber(node.left);
+				var right = this.evalNumber(node.right);
+				switch (node.kind) {
+					case ADD -> this.result(left + right);
+					case SUB -> this.result(left - right);
+					case MUL -> this.result(left * right);
+					case DIV -> this.result(left / right);
+					case IDIV -> this.result(Math.floor(left / right));
+					case CMP -> this.result(left == right);
+					case GT -> this.result(left > right);
+					case GTE -> this.result(left >= right);
+					case LT -> this.result(left < right);
+					case LTE -> this.result(left <= right);
 					default -> throw new IllegalStateException();
-				};
-				this.value = value;
+				}
 			}
 			case String -> {
-				var left = InterpretorStage.interpret(this.environment, node.left).getString().getValue();
-				var right = InterpretorStage.interpret(this.environment, node.right).getString().getValue();
-				var value = switch (node.kind) {
-					case ADD -> Value.createString(left + right);
-					case CMP -> Value.createBoolean(left.equals(right));
+				var left = this.eval(node.left).getString().getValue();
+				var right = this.eval(node.right).getString().getValue();
+				switch (node.kind) {
+					case ADD -> this.result(Value.createString(left + right));
+					case CMP -> this.result(left.equals(right));
 					default -> throw new IllegalStateException();
-				};
-				this.value = value;
+				}
 			}
 			default -> throw new IllegalStateException();
 		}
@@ -104,29 +184,26 @@ class Visitor implements AstVisitor {
 		var operand_type = node.expr.getAnnotation(TypeCheckStage.TYPE_KEY);
 		switch (operand_type.getKind()) {
 			case Number -> {
-				var operand = InterpretorStage.interpret(this.environment, node.expr);
-				var value = switch (node.kind) {
-					case POS -> Value.createNumber(operand.getNumber().getValue());
-					case NEG -> Value.createNumber(-operand.getNumber().getValue());
+				var operand = this.evalNumber(node.expr);
+				switch (node.kind) {
+					case POS -> this.result(operand);
+					case NEG -> this.result(-operand);
 					default -> throw new IllegalStateException();
-				};
-				this.value = value;
+				}
 			}
 			case Boolean -> {
-				var operand = InterpretorStage.interpret(this.environment, node.expr);
-				var value = switch (node.kind) {
-					case LNOT -> Value.createBoolean(!operand.getBoolean().getValue());
+				var operand = this.evalBoolean(node.expr);
+				switch (node.kind) {
+					case LNOT -> this.result(!operand);
 					default -> throw new IllegalStateException();
-				};
-				this.value = value;
+				}
 			}
 			case Reference -> {
-				var operand = InterpretorStage.interpret(this.environment, node.expr);
-				var value = switch (node.kind) {
-					case DEREF -> operand.getReference().getValue();
+				var operand = this.eval(node.expr);
+				switch (node.kind) {
+					case DEREF -> this.result(operand.getReference().getValue());
 					default -> throw new IllegalStateException();
-				};
-				this.value = value;
+				}
 			}
 			default -> throw new IllegalStateException();
 		}
@@ -134,174 +211,167 @@ class Visitor implements AstVisitor {
 
 	@Override
 	public void acceptDecl(AstDecl node) {
-		var name = node.name;
-		var value = InterpretorStage.interpret(this.environment, node.value);
-		this.environment.define(name, value);
-		this.value = Value.createVoid();
+		var slot = node.getAnnotation(ResolverStage.SLOT_KEY);
+		var value = this.eval(node.value);
+		this.frame.slots[slot.index] = slot.boxed ? Value.createReference(value) : value;
+		this.result(Value.createVoid());
 	}
 
 	@Override
 	public void acceptScope(AstScope node) {
-		var env = this.environment.beginScope();
-		for (var stmt : node.stmts) {
-			InterpretorStage.interpret(env, stmt);
-		}
-		var value = InterpretorStage.interpret(env, node.expr);
-		this.value = value;
+		for (var stmt : node.stmts)
+			stmt.accept(this);
+		node.expr.accept(this);
 	}
 
 	@Override
 	public void acceptEmptyNode(AstEmptyNode node) {
-		this.value = Value.createVoid();
+		this.result(Value.createVoid());
 	}
 
 	@Override
 	public void acceptVar(AstVar node) {
-		var value = this.environment.lookup(node.name);
-		if (value == null)
-			throw new RuntimeException("Variable " + node.name + " is not defined\n" + this.environment);
-		this.value = value;
+		var slot = node.getAnnotation(ResolverStage.SLOT_KEY);
+		var value = this.frame.get(slot);
+		this.result(slot.boxed ? value.getReference().getValue() : value);
 	}
 
 	@Override
 	public void acceptCall(AstCall call) {
-		var fnvalue = InterpretorStage.interpret(this.environment, call.function).getFunction();
-		var arguments = call.arguments.stream().map(arg -> InterpretorStage.interpret(this.environment, arg)).toList();
-		this.value = fnvalue.evaluate(arguments);
+		var fnvalue = this.eval(call.function).getFunction();
+		var frame = fnvalue.createFrame();
+		for (var i = 0; i < call.arguments.size(); ++i)
+			frame.slots[i + 1] = this.eval(call.arguments.get(i));
+		this.result(fnvalue.evaluate(frame));
 	}
 
 	@Override
 	public void acceptIf(AstIf astIf) {
 		for (var cond : astIf.conditionals) {
-			var cond_value = InterpretorStage.interpret(this.environment, cond.condition).getBoolean().getValue();
-			if (cond_value) {
-				var value = InterpretorStage.interpret(this.environment, cond.expression);
-				this.value = value;
+			if (this.evalBoolean(cond.condition)) {
+				cond.expression.accept(this);
 				return;
 			}
 		}
-
-		var value = InterpretorStage.interpret(this.environment, astIf.fallthrough);
-		this.value = value;
+		astIf.fallthrough.accept(this);
 	}
 
 	@Override
 	public void acceptLoop(AstLoop loop) {
-		while (true) {
-			var condition = InterpretorStage.interpret(this.environment, loop.condition);
-			if (!condition.getBoolean().getValue())
-				break;
-			InterpretorStage.interpret(this.environment, loop.body);
-		}
-		this.value = Value.createVoid();
+		while (this.evalBoolean(loop.condition))
+			loop.body.accept(this);
+		this.result(Value.createVoid());
 	}
 
 	@Override
 	public void acceptAssign(AstAssign assign) {
-		var value = this.environment.lookup(assign.name);
-		var new_value = InterpretorStage.interpret(this.environment, assign.value);
-		value.assign(new_value);
-		this.value = Value.createVoid();
+		var slot = assign.getAnnotation(ResolverStage.SLOT_KEY);
+		var new_value = this.eval(assign.value);
+		// Assigning to a reference stores the value in the reference itself
+		if (this.frame.get(slot) instanceof RefValue ref)
+			ref.setValue(new_value);
+		else
+			this.frame.set(slot, new_value);
+		this.result(Value.createVoid());
 	}
 
 	@Override
 	public void acceptPrint(AstPrint print) {
-		var value = InterpretorStage.interpret(this.environment, print.expr);
+		var type = print.expr.getAnnotation(TypeCheckStage.TYPE_KEY);
+		String text;
+		if (print.nodecimal && type.isKind(ValueType.Kind.Number))
+			text = String.valueOf((int) this.evalNumber(print.expr));
+		else
+			text = this.eval(print.expr).toString();
 		if (print.newline)
-			System.out.println(value);
+			Output.println(text);
 		else
-			System.out.print(value);
-		this.value = Value.createVoid();
+			Output.print(text);
+		this.result(Value.createVoid());
 	}
 
 	@Override
 	public void acceptNew(AstNew anew) {
-		var value = InterpretorStage.interpret(this.environment, anew.value);
-		var refvalue = Value.createReference(value);
-		this.value = refvalue;
+		var value = this.eval(anew.value);
+		this.result(Value.createReference(value));
 	}
 
 	@Override
 	public void acceptFn(AstFn fn) {
 		var type = fn.getAnnotation(TypeCheckStage.TYPE_KEY);
-		var fnenv = this.environment.beginScope();
+		var size = fn.getAnnotation(ResolverStage.FRAME_KEY);
+		var closure = this.frame.capture(fn.getAnnotation(ResolverStage.CAPTURES_KEY));
 		var body = fn.body;
-		var fnvalue = Value.createFunction(type, fnenv, fn.arguments, body);
-		fnenv.define("this", fnvalue);
-		this.value = fnvalue;
+		this.result(Value.createFunction(type, closure, size, frame -> InterpretorStage.interpret(frame, body)));
 	}
 
 	@Override
 	public void acceptRecord(AstRecord record) {
 		var type = record.getAnnotation(TypeCheckStage.TYPE_KEY);
-		var fields = new HashMap<String, Value>();
-		for (var field : record.fields.entrySet()) {
-			var value = InterpretorStage.interpret(this.environment, field.getValue());
-			fields.put(field.getKey(), value);
-		}
-		this.value = Value.createRecord(type, fields);
+		var layout = type.getRecord();
+		var fields = new Value[layout.size()];
+		for (var field : record.fields.entrySet())
+			fields[layout.indexOf(field.getKey())] = this.eval(field.getValue());
+		this.result(Value.createRecord(type, fields));
 	}
 
 	@Override
 	public void acceptField(AstField field) {
-		var record = InterpretorStage.interpret(this.environment, field.value);
-		var value = record.getRecord().getField(field.field);
-		this.value = value;
+		var record = this.eval(field.value);
+		var index = field.getAnnotation(ResolverStage.FIELD_KEY);
+		this.result(record.getRecord().getField(index));
 	}
 
 	@Override
 	public void acceptTypeAlias(AstTypeAlias typeAlias) {
-		this.value = Value.createVoid();
+		this.result(Value.createVoid());
 	}
 
 	@Override
 	public void acceptBuiltin(AstBuiltin builtin) {
-		var args = builtin.args.stream().map(arg -> InterpretorStage.interpret(this.environment, arg)).toList();
-
-		var result = switch (builtin.builtin) {
+		switch (builtin.builtin) {
 			case ABS -> {
-				var x = args.get(0).getNumber().getValue();
-				yield Value.createNumber(Math.abs(x));
+				var x = this.evalNumber(builtin.args.get(0));
+				this.result(Math.abs(x));
 			}
 			case COS -> {
-				var x = args.get(0).getNumber().getValue();
-				yield Value.createNumber(Math.cos(x));
+				var x = this.evalNumber(builtin.args.get(0));
+				this.result(FastMathStage.isFast(builtin) ? FastMath.cos(x) : Math.cos(x));
 			}
 			case MAX -> {
-				var x = args.get(0).getNumber().getValue();
-				var y = args.get(1).getNumber().getValue();
-				yield Value.createNumber(Math.max(x, y));
+				var x = this.evalNumber(builtin.args.get(0));
+				var y = this.evalNumber(builtin.args.get(1));
+				this.result(Math.max(x, y));
 			}
 			case MIN -> {
-				var x = args.get(0).getNumber().getValue();
-				var y = args.get(1).getNumber().getValue();
-				yield Value.createNumber(Math.min(x, y));
+				var x = this.evalNumber(builtin.args.get(0));
+				var y = this.evalNumber(builtin.args.get(1));
+				this.result(Math.min(x, y));
 			}
 			case PI -> {
-				yield Value.createNumber(Math.PI);
+				this.result(Math.PI);
 			}
 			case POW -> {
-				var x = args.get(0).getNumber().getValue();
-				var y = args.get(1).getNumber().getValue();
-				yield Value.createNumber(Math.pow(x, y));
+				var x = this.evalNumber(builtin.args.get(0));
+				var y = this.evalNumber(builtin.args.get(1));
+				this.result(Math.pow(x, y));
 			}
 			case SIN -> {
-				var x = args.get(0).getNumber().getValue();
-				yield Value.createNumber(Math.sin(x));
+				var x = this.evalNumber(builtin.args.get(0));
+				this.result(FastMathStage.isFast(builtin) ? FastMath.sin(x) : Math.sin(x));
 			}
 			case SQRT -> {
-				var x = args.get(0).getNumber().getValue();
-				yield Value.createNumber(Math.sqrt(x));
+				var x = this.evalNumber(builtin.args.get(0));
+				this.result(Math.sqrt(x));
 			}
 			case TAN -> {
-				var x = args.get(0).getNumber().getValue();
-				yield Value.createNumber(Math.tan(x));
+				var x = this.evalNumber(builtin.args.get(0));
+				this.result(FastMathStage.isFast(builtin) ? FastMath.tan(x) : Math.tan(x));
 			}
 			case RAND -> {
-				yield Value.createNumber(Math.random());
+				this.result(Math.random());
 			}
-		};
-		this.value = result;
+		}
 	}
 
 }
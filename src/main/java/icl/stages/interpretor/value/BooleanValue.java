@@ -3,7 +3,7 @@ package icl.stages.interpretor.value;
 import icl.ValueType;
 
 public class BooleanValue extends Value {
-    public boolean value;
+    public final boolean value;
 
     BooleanValue(ValueType type, boolean value) {
         super(type);
@@ -1,35 +1,42 @@
 package icl.stages.interpretor.value;
 
-import java.util.List;
-
-import icl.Environment;
 import icl.ValueType;
-import icl.ast.AstFn;
-import icl.ast.AstNode;
-import icl.stages.interpretor.InterpretorStage;
+import icl.stages.interpretor.Code;
+import icl.stages.interpretor.Frame;
 
 public class FnValue extends Value {
-    Environment<Value> env;
-    List<AstFn.Arg> args;
-    AstNode body;
+    final Frame env;
+    final int frameSize;
+    final Code code;
 
-    FnValue(ValueType type, Environment<Value> environment, List<AstFn.Arg> args, AstNode body) {
+    FnValue(ValueType type, Frame env, int frameSize, Code code) {
         super(type);
-        this.env = environment;
-        this.args = args;
-        this.body = body;
+        this.env = env;
+        this.frameSize = frameSize;
+        this.code = code;
 
         assert type.getKind() == ValueType.Kind.Function;
     }
 
-    public Value evaluate(List<Value> arguments) {
-        var eval_env = this.env.beginScope();
-        for (var i = 0; i < arguments.size(); ++i) {
-            var farg = this.args.get(i);
-            var arg = arguments.get(i);
-            eval_env.define(farg.name, arg);
-        }
-        return InterpretorStage.interpret(eval_env, this.body);
+    /**
+     * Creates the frame for a call to this function.
+     * The caller must store the arguments in slots 1 to N before calling
+     * evaluate.
+     *
+     * @return The new frame
+     */
+    public Frame createFrame() {
+        var frame = new Frame(this.env, this.frameSize);
+        frame.slots[0] = this;
+        return frame;
+    }
+
+    public Code getCode() {
+        return this.code;
+    }
+
+    public Value evaluate(Frame frame) {
+        return this.code.execute(frame);
     }
 
 }
@@ -3,7 +3,7 @@ package icl.stages.interpretor.value;
 import icl.ValueType;
 
 public class NumberValue extends Value {
-    public double value;
+    public final double value;
 
     NumberValue(ValueType type, double value) {
         super(type);
@@ -1,27 +1,41 @@
 package icl.stages.interpretor.value;
 
-import java.util.Map;
-
 import icl.ValueType;
 
 public class RecordValue extends Value {
 
-    Map<String, Value> fields;
+    // Field values in the layout order of the record type
+    final Value[] fields;
 
-    protected RecordValue(ValueType type, Map<String, Value> fields) {
+    protected RecordValue(ValueType type, Value[] fields) {
         super(type);
         this.fields = fields;
+
+        assert type.getRecord().size() == fields.length;
+    }
+
+    public Value getField(int index) {
+        return this.fields[index];
     }
 
     public Value getField(String name) {
-        if (!fields.containsKey(name))
-            throw new RuntimeException("Field " + name + " not found in record " + this);
-        return this.fields.get(name);
+        return this.fields[this.type.getRecord().indexOf(name)];
     }
 
     @Override
     public String toString() {
-        return "RecordValue [fields=" + fields + "]";
+        var record = this.type.getRecord();
+        var builder = new StringBuilder();
+        builder.append("RecordValue [fields={");
+        for (var i = 0; i < this.fields.length; ++i) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(record.name(i));
+            builder.append("=");
+            builder.append(this.fields[i]);
+        }
+        builder.append("}]");
+        return builder.toString();
     }
 
 }
@@ -16,6 +16,10 @@ public class RefValue extends Value {
         return this.value;
     }
 
+    public void setValue(Value value) {
+        this.value = value;
+    }
+
     public ValueType getTarget() {
         return this.value.getType();
     }
@@ -1,15 +1,15 @@
 package icl.stages.interpretor.value;
 
-import java.util.List;
-import java.util.Map;
-
-import icl.Environment;
 import icl.ValueType;
-import icl.ast.AstFn;
-import icl.ast.AstNode;
+import icl.stages.interpretor.Code;
+import icl.stages.interpretor.Frame;
 
 public abstract class Value {
 
+	private static final Value VOID = new VoidValue(ValueType.createVoid());
+	private static final Value TRUE = new BooleanValue(ValueType.createBoolean(), true);
+	private static final Value FALSE = new BooleanValue(ValueType.createBoolean(), false);
+
 	protected final ValueType type;
 
 	protected Value(ValueType type) {
@@ -56,26 +56,8 @@ public abstract class Value {
 		throw new RuntimeException("Value is not a record");
 	}
 
-	public final void assign(Value other) {
-		if ((this instanceof RefValue && !this.getReference().getTarget().equals(other.getType()))
-				|| (!(this instanceof RefValue) && !this.getType().equals(other.getType())))
-			throw new RuntimeException("Values are not the same type");
-
-		if (this instanceof NumberValue) {
-			((NumberValue) this).value = ((NumberValue) other).value;
-		} else if (this instanceof BooleanValue) {
-			((BooleanValue) this).value = ((BooleanValue) other).value;
-		} else if (this instanceof RefValue) {
-			((RefValue) this).value.assign(other);
-		} else if (this instanceof FnValue) {
-			((FnValue) this).env = ((FnValue) other).env;
-			((FnValue) this).args = ((FnValue) other).args;
-			((FnValue) this).body = ((FnValue) other).body;
-		}
-	}
-
 	public static Value createVoid() {
-		return new VoidValue(ValueType.createVoid());
+		return VOID;
 	}
 
 	public static Value createNumber(double value) {
@@ -83,7 +65,7 @@ public abstract class Value {
 	}
 
 	public static Value createBoolean(boolean value) {
-		return new BooleanValue(ValueType.createBoolean(), value);
+		return value ? TRUE : FALSE;
 	}
 
 	public static Value createString(String value) {
@@ -96,13 +78,16 @@ public abstract class Value {
 
 	public static FnValue createFunction(
 			ValueType type,
-			Environment<Value> env,
-			List<AstFn.Arg> args,
-			AstNode body) {
-		return new FnValue(type, env, args, body);
+			Frame env,
+			int frameSize,
+			Code code) {
+		return new FnValue(type, env, frameSize, code);
 	}
 
-	public static Value createRecord(ValueType type, Map<String, Value> fields) {
+	/**
+	 * @param fields The field values in the layout order of the record type
+	 */
+	public static Value createRecord(ValueType type, Value[] fields) {
 		return new RecordValue(type, fields);
 	}
 }
@@ -0,0 +1,42 @@
+package icl.stages.jvm;
+
+import java.util.Map;
+
+import icl.ValueType;
+
+/**
+ * A free variable of a function, stored in a field of the function object with
+ * the same name.
+ */
+public class CapturedVariable {
+    public final String name;
+    public final ValueType type;
+    // The field holds the reference that boxes the variable
+    public final boolean boxed;
+    // Class of the function the variable is bound to, if it is known
+    public final String function;
+    // Classes of the functions in the fields of the record the variable is
+    // bound to, if it is known
+    public final Map<String, String> fields;
+
+    public CapturedVariable(String name, ValueType type, boolean boxed) {
+        this(name, type, boxed, null, null);
+    }
+
+    public CapturedVariable(String name, ValueType type, boolean boxed, String function,
+            Map<String, String> fields) {
+        this.name = name;
+        this.type = type;
+        this.boxed = boxed;
+        this.function = function;
+        this.fields = fields;
+    }
+
+    public String getDescriptor() {
+        if (this.boxed)
+            return Names.descriptor(ValueType.createReference(this.type));
+        if (this.function != null)
+            return Names.typenameToDescriptor(this.function);
+        return Names.descriptor(this.type);
+    }
+}
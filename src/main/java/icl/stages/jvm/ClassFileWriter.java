@@ -0,0 +1,28 @@
+package icl.stages.jvm;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Writer of the generated classes, the stack map frames and the sizes of the
+ * stack and locals of every method are computed from its code.
+ */
+public class ClassFileWriter extends ClassWriter {
+    // Class file version of the generated classes
+    public static final int VERSION = Opcodes.V17;
+
+    public ClassFileWriter() {
+        super(ClassWriter.COMPUTE_FRAMES);
+    }
+
+    /**
+     * Generated classes are not loaded while they are written, so their
+     * hierarchy can not be looked up. Every generated class extends Object or
+     * a class of the runtime and values of different classes are only ever
+     * used as interfaces, which the verifier treats as Object.
+     */
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        return "java/lang/Object";
+    }
+}
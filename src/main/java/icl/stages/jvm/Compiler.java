@@ -1,77 +1,106 @@
 package icl.stages.jvm;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.MethodNode;
 
 import icl.ValueType;
 import icl.ast.AstFn;
 import icl.ast.AstNode;
+import icl.stages.optimize.FastMathStage;
 import icl.stages.typecheck.TypeCheckStage;
 
 public class Compiler {
-    public static final int SL_INDEX = 32;
-    public static final int SL_SCRATCH = 64;
+    // Static method of every function class with its body
+    public static final String INVOKE_METHOD = "invoke";
+    // Output sink used by print, shipped with every compiled program
+    public static final String OUTPUT_TYPENAME = "icl/runtime/Output";
+    // Trigonometric builtins of the fast math mode, shipped with every compiled program
+    public static final String FAST_MATH_TYPENAME = "icl/runtime/FastMath";
+    // Call site of calls to function values, shipped with every compiled program
+    public static final String INLINE_CACHE_TYPENAME = "icl/runtime/InlineCache";
+    // Constant of the Main class, true if the program was compiled in fast math mode
+    public static final String FAST_MATH_FIELD = "FAST_MATH";
+    // Bootstrap of the function objects of functions compiled to static methods
+    private static final Handle LAMBDA_METAFACTORY = new Handle(
+            Opcodes.H_INVOKESTATIC,
+            "java/lang/invoke/LambdaMetafactory",
+            "metafactory",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+                    + "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)"
+                    + "Ljava/lang/invoke/CallSite;",
+            false);
 
     /**
      * Compiles a Main class with a main method.
      * 
-     * @param env  The environment
-     * @param node The node to compile
+     * @param context The context
+     * @param node    The node to compile
      * @return The compiled class
      */
-    public static CompiledClass main(Environment env, AstNode node) {
-        var main_class = new ClassWriter(0);
-        main_class.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC, "Main", null,
+    public static CompiledClass main(Context context, AstNode node) {
+        // The operand stack of generated bodies is sized by the writer, an
+        // oversized stack makes every interpreted frame of deep recursions large
+        var main_class = new ClassFileWriter();
+        main_class.visit(ClassFileWriter.VERSION, Opcodes.ACC_PUBLIC, "Main", null,
                 "java/lang/Object", new String[] {});
-        var method = main_class.visitMethod(Opcodes.ACC_PUBLIC +
+        main_class.visitField(Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL, FAST_MATH_FIELD, "Z",
+                null, FastMathStage.isFast(node) ? 1 : 0).visitEnd();
+        var method = new MethodNode(Opcodes.ACC_PUBLIC +
                 Opcodes.ACC_STATIC, "main",
                 "([Ljava/lang/String;)V", null,
                 null);
         method.visitCode();
-        method.visitMaxs(256, 256);
-
-        Compiler.compileBasicNew(method, env.getTypename());
-        method.visitVarInsn(Opcodes.ASTORE, SL_INDEX);
 
-        var visitor = new CompilerVisitor(env, method);
+        var visitor = new CompilerVisitor(context, method, null);
         node.accept(visitor);
 
+        method.visitMethodInsn(Opcodes.INVOKESTATIC, OUTPUT_TYPENAME, "flush", "()V", false);
         method.visitInsn(Opcodes.RETURN);
+        method.visitMaxs(0, 0);
         method.visitEnd();
+        Peephole.optimize(method);
+        method.accept(main_class);
+        for (var function : context.methods())
+            function.accept(main_class);
         main_class.visitEnd();
 
         return new CompiledClass("Main", main_class.toByteArray());
     }
 
-    public static CompiledClass compile(Environment env) {
-        var typename = env.getTypename();
-
-        var cwriter = new ClassWriter(0);
-        cwriter.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC, typename, null, "java/lang/Object", new String[] {});
-
-        var parent_descriptor = switch (env.hasParent() ? 1 : 0) {
-            case 1 -> env.getParent().getDescriptor();
-            default -> Names.typenameToDescriptor("java/lang/Object");
-        };
-        cwriter.visitField(Opcodes.ACC_PUBLIC, "parent", parent_descriptor, null, null);
-
-        for (var field : env.fields())
-            cwriter.visitField(Opcodes.ACC_PUBLIC, field.field, field.descriptor, null, null);
-
-        Compiler.generateDefaultInitMethod(cwriter);
-        cwriter.visitEnd();
-
-        return new CompiledClass(typename, cwriter.toByteArray());
+    /**
+     * Copies the classes the compiled program needs at runtime from the
+     * classpath of the compiler.
+     *
+     * @return The runtime classes
+     */
+    public static List<CompiledClass> runtime() {
+        var classes = new ArrayList<CompiledClass>();
+        for (var typename : List.of(OUTPUT_TYPENAME, FAST_MATH_TYPENAME, INLINE_CACHE_TYPENAME)) {
+            try (var stream = Compiler.class.getResourceAsStream("/" + typename + ".class")) {
+                classes.add(new CompiledClass(typename, stream.readAllBytes()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return classes;
     }
 
     public static CompiledClass compile(ValueType.Function fn) {
         var typename = Names.typename(fn);
         var call_descriptor = Names.callDescriptor(fn);
 
-        var cwriter = new ClassWriter(0);
-        cwriter.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC + Opcodes.ACC_INTERFACE, typename, null,
-                "java/lang/Object", new String[] {});
+        var cwriter = new ClassFileWriter();
+        cwriter.visit(ClassFileWriter.VERSION, Opcodes.ACC_PUBLIC + Opcodes.ACC_INTERFACE + Opcodes.ACC_ABSTRACT,
+                typename, null, "java/lang/Object", new String[] {});
 
         var method = cwriter.visitMethod(Opcodes.ACC_PUBLIC + Opcodes.ACC_ABSTRACT, "call", call_descriptor, null,
                 null);
@@ -81,97 +110,142 @@ public class Compiler {
         return new CompiledClass(typename, cwriter.toByteArray());
     }
 
-    public static CompiledClass compile(Environment env, String typename, AstFn fn) {
-        var context = env.getContext();
+    /**
+     * Compiles the class of a function.
+     * The free variables of the function are public fields of the class, they
+     * must be set after creating an instance.
+     *
+     * @param context  The context
+     * @param typename The name of the class
+     * @param fn       The function
+     * @param captured The free variables of the function
+     * @return The compiled class
+     */
+    public static CompiledClass compile(Context context, String typename, AstFn fn,
+            List<CapturedVariable> captured) {
         var ftype = fn.getAnnotation(TypeCheckStage.TYPE_KEY).getFunction();
         var interface_typename = Names.typename(ftype);
         var call_descriptor = Names.callDescriptor(ftype);
         var function_typename = typename;
-        var environment_descriptor = env.getDescriptor();
 
-        var cwriter = new ClassWriter(0);
-        cwriter.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC, function_typename, null, "java/lang/Object", new String[] {
+        var cwriter = new ClassFileWriter();
+        cwriter.visit(ClassFileWriter.VERSION, Opcodes.ACC_PUBLIC, function_typename, null, "java/lang/Object", new String[] {
                 interface_typename
         });
-        cwriter.visitField(Opcodes.ACC_PUBLIC, "frame", environment_descriptor, null, null);
+        for (var variable : captured)
+            cwriter.visitField(Opcodes.ACC_PUBLIC, variable.name, variable.getDescriptor(), null, null);
 
         generateDefaultInitMethod(cwriter);
 
-        var method = cwriter.visitMethod(Opcodes.ACC_PUBLIC, "call", call_descriptor, null, null);
+        // The body is a static method so calls to a known function do not go
+        // through the interface, call only forwards to it
+        var invoke_descriptor = Names.invokeDescriptor(function_typename, ftype);
+        var method = new MethodNode(Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC, INVOKE_METHOD, invoke_descriptor,
+                null, null);
         method.visitCode();
-        method.visitMaxs(256, 256);
-
-        // Prepare new environment to store arguments in
-        var fenv = env.begin();
-        Compiler.compileBasicNew(method, fenv.getTypename());
-        method.visitInsn(Opcodes.DUP);
-        method.visitVarInsn(Opcodes.ALOAD, 0);
-        method.visitFieldInsn(Opcodes.GETFIELD, function_typename, "frame", environment_descriptor);
-        method.visitFieldInsn(Opcodes.PUTFIELD, fenv.getTypename(), "parent", environment_descriptor);
 
+        // Arguments stay in the registers they were passed in
+        var visitor = new CompilerVisitor(context, method, function_typename);
+        for (var variable : captured)
+            visitor.bindCaptured(variable);
+        visitor.bindThis(ftype);
         var register_index = 1;
-        for (var i = 1; i <= fn.arguments.size(); ++i) {
-            var arg = fn.arguments.get(i - 1);
-            var arg_type = ftype.args.get(i - 1);
-            var arg_name = arg.name;
-
-            // Duplicate the environment
-            method.visitInsn(Opcodes.DUP);
-
-            // Load the argument to the stack
-            switch (arg_type.getKind()) {
-                case Boolean -> {
-                    method.visitVarInsn(Opcodes.ILOAD, register_index);
-                    register_index += 1;
-                }
-                case Number -> {
-                    method.visitVarInsn(Opcodes.DLOAD, register_index);
-                    register_index += 2;
-                }
-                case Function, Record, Reference, String -> {
-                    method.visitVarInsn(Opcodes.ALOAD, register_index);
-                    register_index += 1;
-                }
-                default -> throw new IllegalStateException();
-            }
-
-            // Define the argument in the environment
-            var field = fenv.define(arg_name, arg_type);
+        for (var i = 0; i < fn.arguments.size(); ++i) {
+            var arg_type = ftype.args.get(i);
+            visitor.bindArgument(fn.arguments.get(i).name, arg_type, register_index);
+            register_index += arg_type.isKind(ValueType.Kind.Number) ? 2 : 1;
+        }
 
-            // Store the argument in the environment
-            method.visitFieldInsn(Opcodes.PUTFIELD, fenv.getTypename(), field.field, field.descriptor);
+        fn.body.accept(visitor);
+        method.visitInsn(returnOpcode(ftype.ret));
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+        Peephole.optimize(method);
+        method.accept(cwriter);
+
+        var call = cwriter.visitMethod(Opcodes.ACC_PUBLIC, "call", call_descriptor, null, null);
+        call.visitCode();
+        call.visitVarInsn(Opcodes.ALOAD, 0);
+        register_index = 1;
+        for (var arg_type : ftype.args) {
+            call.visitVarInsn(loadOpcode(arg_type), register_index);
+            register_index += arg_type.isKind(ValueType.Kind.Number) ? 2 : 1;
         }
+        call.visitMethodInsn(Opcodes.INVOKESTATIC, function_typename, INVOKE_METHOD, invoke_descriptor, false);
+        call.visitInsn(returnOpcode(ftype.ret));
+        call.visitMaxs(0, 0);
+        call.visitEnd();
 
-        // Store the environment in the frame field
-        method.visitVarInsn(Opcodes.ASTORE, SL_INDEX);
+        return new CompiledClass(function_typename, cwriter.toByteArray());
+    }
 
-        var visitor = new CompilerVisitor(fenv, method);
-        fn.body.accept(visitor);
-        context.compile(fenv);
-
-        var return_type = ftype.ret;
-        switch (return_type.getKind()) {
-            case Boolean -> method.visitInsn(Opcodes.IRETURN);
-            case Number -> method.visitInsn(Opcodes.DRETURN);
-            case Function, Record, Reference, String -> method.visitInsn(Opcodes.ARETURN);
-            case Void -> method.visitInsn(Opcodes.RETURN);
-            default -> throw new IllegalStateException();
+    /**
+     * Compiles a function to a private static method of the Main class, used
+     * when functions are static methods instead of classes.
+     * The free variables of the function are the first parameters of the
+     * method, followed by the arguments.
+     *
+     * @param context  The context
+     * @param name     The name of the method
+     * @param fn       The function
+     * @param captured The free variables of the function
+     * @return The compiled method, to be added to the Main class
+     */
+    public static MethodNode compileMethod(Context context, String name, AstFn fn, List<CapturedVariable> captured) {
+        var ftype = fn.getAnnotation(TypeCheckStage.TYPE_KEY).getFunction();
+        var method = new MethodNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC, name,
+                Names.methodDescriptor(captured, ftype), null, null);
+        method.visitCode();
+
+        var visitor = new CompilerVisitor(context, method, name);
+        var register_index = 0;
+        for (var variable : captured) {
+            visitor.bindCaptured(variable, register_index);
+            register_index += variable.type.isKind(ValueType.Kind.Number) && !variable.boxed ? 2 : 1;
         }
+        visitor.bindSelf(ftype, captured);
+        for (var i = 0; i < fn.arguments.size(); ++i) {
+            var arg_type = ftype.args.get(i);
+            visitor.bindArgument(fn.arguments.get(i).name, arg_type, register_index);
+            register_index += arg_type.isKind(ValueType.Kind.Number) ? 2 : 1;
+        }
+
+        fn.body.accept(visitor);
+        method.visitInsn(returnOpcode(ftype.ret));
+        method.visitMaxs(0, 0);
         method.visitEnd();
+        Peephole.optimize(method);
+        return method;
+    }
 
-        return new CompiledClass(function_typename, cwriter.toByteArray());
+    /**
+     * Creates a function object for a static method of the Main class with
+     * LambdaMetafactory. The free variables of the function must be on the
+     * stack, the function object is left in their place.
+     *
+     * @param method   The method to compile into
+     * @param name     The name of the static method
+     * @param ftype    The type of the function
+     * @param captured The free variables of the function
+     */
+    static void compileLambda(MethodVisitor method, String name, ValueType.Function ftype,
+            List<CapturedVariable> captured) {
+        var call_type = Type.getMethodType(Names.callDescriptor(ftype));
+        var factory_descriptor = "(" + Names.capturedDescriptor(captured) + ")" + Names.descriptor(ftype);
+        method.visitInvokeDynamicInsn("call", factory_descriptor, LAMBDA_METAFACTORY, call_type,
+                new Handle(Opcodes.H_INVOKESTATIC, "Main", name, Names.methodDescriptor(captured, ftype), false),
+                call_type);
     }
 
     public static CompiledClass compile(ValueType.Record record) {
         var typename = Names.typename(record);
-        var cwriter = new ClassWriter(0);
-        cwriter.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC, typename, null, "java/lang/Object", new String[] {});
-
-        for (var field : record.fields()) {
-            var name = field.getKey();
-            var type = field.getValue();
-            var descriptor = Names.descriptor(type);
-            cwriter.visitField(Opcodes.ACC_PUBLIC, name, descriptor, null, null);
+        var cwriter = new ClassFileWriter();
+        cwriter.visit(ClassFileWriter.VERSION, Opcodes.ACC_PUBLIC, typename, null, "java/lang/Object", new String[] {});
+
+        for (var i = 0; i < record.size(); ++i) {
+            var name = record.name(i);
+            var descriptor = Names.descriptor(record.get(name));
+            cwriter.visitField(Opcodes.ACC_PUBLIC, Names.field(record, name), descriptor, null, null);
         }
 
         generateDefaultInitMethod(cwriter);
@@ -181,8 +255,8 @@ public class Compiler {
 
     public static CompiledClass compile(ValueType.Reference ref) {
         var typename = Names.typename(ref);
-        var cwriter = new ClassWriter(0);
-        cwriter.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC, typename, null, "java/lang/Object", new String[] {});
+        var cwriter = new ClassFileWriter();
+        cwriter.visit(ClassFileWriter.VERSION, Opcodes.ACC_PUBLIC, typename, null, "java/lang/Object", new String[] {});
         cwriter.visitField(Opcodes.ACC_PUBLIC, "value", Names.descriptor(ref.target), null, null);
 
         generateDefaultInitMethod(cwriter);
@@ -205,13 +279,32 @@ public class Compiler {
                 "<init>", "()V", false);
     }
 
+    private static int loadOpcode(ValueType type) {
+        return switch (type.getKind()) {
+            case Boolean -> Opcodes.ILOAD;
+            case Number -> Opcodes.DLOAD;
+            case Function, Record, Reference, String -> Opcodes.ALOAD;
+            default -> throw new IllegalStateException();
+        };
+    }
+
+    private static int returnOpcode(ValueType type) {
+        return switch (type.getKind()) {
+            case Boolean -> Opcodes.IRETURN;
+            case Number -> Opcodes.DRETURN;
+            case Function, Record, Reference, String -> Opcodes.ARETURN;
+            case Void -> Opcodes.RETURN;
+            default -> throw new IllegalStateException();
+        };
+    }
+
     private static void generateDefaultInitMethod(ClassWriter frame) {
         var init = frame.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
         init.visitCode();
-        init.visitMaxs(1, 1);
         init.visitVarInsn(Opcodes.ALOAD, 0);
         init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
         init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(1, 1);
         init.visitEnd();
     }
 }
@@ -4,13 +4,27 @@ import icl.ast.AstNode;
 import icl.pipeline.PipelineStage;
 
 public class CompilerStage implements PipelineStage<AstNode, CompilerOutput> {
+    private final boolean static_functions;
+
+    public CompilerStage() {
+        this(false);
+    }
+
+    /**
+     * @param static_functions Compile every function to a static method of the
+     *                         Main class instead of to a class of its own
+     */
+    public CompilerStage(boolean static_functions) {
+        this.static_functions = static_functions;
+    }
 
     @Override
     public CompilerOutput process(AstNode input) {
-        var context = new Context();
-        var environment = new Environment(context);
-        context.emit(Compiler.main(environment, input));
-        context.emit(Compiler.compile(environment));
+        var context = new Context(this.static_functions);
+        context.analyze(input);
+        context.emit(Compiler.main(context, input));
+        for (var runtime : Compiler.runtime())
+            context.emit(runtime);
         return new CompilerOutput(context.classes());
     }
 
@@ -1,5 +1,12 @@
 package icl.stages.jvm;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -17,6 +24,7 @@ import icl.ast.AstFn;
 import icl.ast.AstIf;
 import icl.ast.AstLoop;
 import icl.ast.AstNew;
+import icl.ast.AstNode;
 import icl.ast.AstNum;
 import icl.ast.AstPrint;
 import icl.ast.AstRecord;
@@ -27,95 +35,197 @@ import icl.ast.AstUnaryOp;
 import icl.ast.AstVar;
 import icl.ast.AstVisitor;
 import icl.stages.jvm.Context.Namespace;
+import icl.stages.optimize.FastMathStage;
 import icl.stages.typecheck.TypeCheckStage;
 
 public class CompilerVisitor implements AstVisitor {
+    // Links the call sites of calls to functions that are not known at compile time
+    private static final Handle INLINE_CACHE_BOOTSTRAP = new Handle(
+            Opcodes.H_INVOKESTATIC,
+            Compiler.INLINE_CACHE_TYPENAME,
+            "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)"
+                    + "Ljava/lang/invoke/CallSite;",
+            false);
+
+    /**
+     * Where the value of a variable is stored, either a JVM local or a field of
+     * the function object. Boxed variables hold a reference with the value.
+     */
+    private static class Variable {
+        final ValueType type;
+        // Local with the value, or -1 if it is a captured variable
+        final int local;
+        final String field;
+        final boolean boxed;
+        // Class of the function the variable is bound to, if it is known
+        final String function;
+        // Classes of the functions in the fields of the record the variable is
+        // bound to, if it is known
+        final Map<String, String> fields;
+        // Locals with the fields of a record that is never allocated
+        final Map<String, Variable> scalars;
+
+        Variable(ValueType type, int local, String field, boolean boxed, String function,
+                Map<String, String> fields) {
+            this.type = type;
+            this.local = local;
+            this.field = field;
+            this.boxed = boxed;
+            this.function = function;
+            this.fields = fields;
+            this.scalars = null;
+        }
+
+        Variable(ValueType type, Map<String, Variable> scalars) {
+            this.type = type;
+            this.local = -1;
+            this.field = null;
+            this.boxed = false;
+            this.function = null;
+            this.fields = null;
+            this.scalars = scalars;
+        }
+
+        ValueType storage() {
+            return this.boxed ? ValueType.createReference(this.type) : this.type;
+        }
 
-    private static final int SL_INDEX = Compiler.SL_INDEX;
-    private static final int SL_SCRATCH = Compiler.SL_SCRATCH;
+        String descriptor() {
+            if (this.function != null)
+                return Names.typenameToDescriptor(this.function);
+            return Names.descriptor(this.storage());
+        }
+    }
 
+    private final Context context;
     private final MethodVisitor method;
-    private Environment env;
+    // Class of the function being compiled, null for the main method
+    private final String function_typename;
+    private icl.Environment<Variable> locals;
+    // Functions stored in the fields of every compiled record literal
+    private final Map<AstRecord, Map<String, String>> record_functions;
+    private int next_local;
+    // This in a function compiled to a static method, and the free variables
+    // that are copied into a new function object when it is used as a value
+    private Variable self;
+    private List<CapturedVariable> self_captured;
 
-    public CompilerVisitor(Environment env, MethodVisitor method) {
-        this.env = env;
+    public CompilerVisitor(Context context, MethodVisitor method, String function_typename) {
+        this.context = context;
         this.method = method;
+        this.function_typename = function_typename;
+        this.locals = new icl.Environment<>();
+        this.record_functions = new HashMap<>();
+        // Local 0 is the function object or the arguments of main
+        this.next_local = 1;
+        this.self = null;
+        this.self_captured = null;
+    }
+
+    /**
+     * Binds a variable that is kept in the register it was passed in.
+     */
+    public void bindArgument(String name, ValueType type, int register) {
+        this.locals.define(name, new Variable(type, register, null, false, null, null));
+        this.next_local = Math.max(this.next_local, register + slots(type));
+    }
+
+    /**
+     * Binds this to the function object in local 0.
+     */
+    public void bindThis(ValueType.Function type) {
+        this.locals.define("this", new Variable(ValueType.createFunction(type), 0, null, false, this.function_typename, null));
     }
 
     /**
-     * Pushes a stack frame onto the stack
-     * 
-     * @param frame The starting frame
-     * @param depth The depth of the frame to push starting from the given frame
+     * Binds a free variable stored in a field of the function object.
      */
-    private void pushEnv(Environment frame, int depth) {
-        var current = frame;
-        this.method.visitVarInsn(Opcodes.ALOAD, SL_INDEX);
-        for (var i = 0; i < depth; i++) {
-            var typename = current.getTypename();
-            var parent_descriptor = current.getParent().getDescriptor();
-            this.method.visitFieldInsn(Opcodes.GETFIELD, typename, "parent", parent_descriptor);
-            current = current.getParent();
+    public void bindCaptured(CapturedVariable variable) {
+        this.locals.define(variable.name,
+                new Variable(variable.type, -1, variable.name, variable.boxed, variable.function, variable.fields));
+    }
+
+    /**
+     * Binds a free variable passed in a register to a static method.
+     */
+    public void bindCaptured(CapturedVariable variable, int register) {
+        var bound = new Variable(variable.type, register, null, variable.boxed, variable.function, variable.fields);
+        this.locals.define(variable.name, bound);
+        this.next_local = Math.max(this.next_local, register + slots(bound.storage()));
+    }
+
+    /**
+     * Binds this in a static method, calls through it are direct and using it
+     * as a value creates a new function object with the same free variables.
+     */
+    public void bindSelf(ValueType.Function type, List<CapturedVariable> captured) {
+        this.self = new Variable(ValueType.createFunction(type), -1, null, false, this.function_typename, null);
+        this.self_captured = captured;
+        this.locals.define("this", this.self);
+    }
+
+    private static int slots(ValueType type) {
+        return type.isKind(ValueType.Kind.Number) ? 2 : 1;
+    }
+
+    private int allocLocal(ValueType type) {
+        var local = this.next_local;
+        this.next_local += slots(type);
+        return local;
+    }
+
+    private void loadLocal(ValueType type, int local) {
+        switch (type.getKind()) {
+            case Boolean -> this.method.visitVarInsn(Opcodes.ILOAD, local);
+            case Number -> this.method.visitVarInsn(Opcodes.DLOAD, local);
+            case Void -> {
+            }
+            default -> this.method.visitVarInsn(Opcodes.ALOAD, local);
         }
     }
 
-    private void pushVar(String name) {
-        var lookup = this.env.lookup(name).get();
-        this.pushEnv(this.env, lookup.depth);
-        this.method.visitFieldInsn(
-                Opcodes.GETFIELD,
-                lookup.env.getTypename(),
-                lookup.field.field,
-                lookup.field.descriptor);
+    private void storeLocal(ValueType type, int local) {
+        switch (type.getKind()) {
+            case Boolean -> this.method.visitVarInsn(Opcodes.ISTORE, local);
+            case Number -> this.method.visitVarInsn(Opcodes.DSTORE, local);
+            case Void -> {
+            }
+            default -> this.method.visitVarInsn(Opcodes.ASTORE, local);
+        }
     }
 
     /**
-     * Assign the value on the top of the stack to the given variable.
-     * The variable on the stack must have the same type as the variable being
-     * assigned to.
-     * 
-     * @param name The name of the variable to assign to
+     * Pushes the value of the variable, or its box if it is boxed.
      */
-    private void assignVar(String name) {
-        var lookup = this.env.lookup(name).get();
-        this.method.visitVarInsn(Opcodes.ASTORE, SL_SCRATCH);
-        this.pushEnv(this.env, lookup.depth);
-        this.method.visitVarInsn(Opcodes.ALOAD, SL_SCRATCH);
-        this.method.visitFieldInsn(
-                Opcodes.PUTFIELD,
-                lookup.env.getTypename(),
-                lookup.field.field,
-                lookup.field.descriptor);
-    }
-
-    private void beginEnv() {
-        var new_env = this.env.begin();
-        var parent_descriptor = this.env.getDescriptor();
-
-        Compiler.compileBasicNew(this.method, new_env.getTypename());
-        this.method.visitInsn(Opcodes.DUP);
-        this.pushEnv(this.env, 0);
-
-        this.method.visitFieldInsn(
-                Opcodes.PUTFIELD,
-                new_env.getTypename(),
-                "parent",
-                parent_descriptor);
-        this.method.visitVarInsn(Opcodes.ASTORE, SL_INDEX);
-        this.env = new_env;
-    }
-
-    private void endEnv() {
-        var context = this.env.getContext();
-        context.compile(this.env);
-        this.method.visitVarInsn(Opcodes.ALOAD, SL_INDEX);
-        this.method.visitFieldInsn(
-                Opcodes.GETFIELD,
-                this.env.getTypename(),
-                "parent",
-                this.env.getParent().getDescriptor());
-        this.method.visitVarInsn(Opcodes.ASTORE, SL_INDEX);
-        this.env = this.env.end();
+    private void pushStorage(Variable variable) {
+        if (variable == this.self) {
+            this.pushCaptured(this.self_captured);
+            Compiler.compileLambda(this.method, this.function_typename, variable.type.getFunction(),
+                    this.self_captured);
+            return;
+        }
+        var storage = variable.storage();
+        if (variable.field == null) {
+            this.loadLocal(storage, variable.local);
+            return;
+        }
+        this.method.visitVarInsn(Opcodes.ALOAD, 0);
+        this.method.visitFieldInsn(Opcodes.GETFIELD, this.function_typename, variable.field,
+                variable.descriptor());
+    }
+
+    private void pushCaptured(List<CapturedVariable> captured) {
+        for (var variable : captured)
+            this.pushStorage(this.locals.lookup(variable.name));
+    }
+
+    private void pushVar(String name) {
+        var variable = this.locals.lookup(name);
+        this.pushStorage(variable);
+        if (variable.boxed)
+            this.method.visitFieldInsn(Opcodes.GETFIELD, Names.typename(variable.storage()), "value",
+                    Names.descriptor(variable.type));
     }
 
     @Override
@@ -138,6 +248,38 @@ public class CompilerVisitor implements AstVisitor {
     @Override
     public void acceptBinOp(AstBinOp node) {
         var operand_type = node.left.getAnnotation(TypeCheckStage.TYPE_KEY);
+        var product = FastMathStage.fusedProduct(node);
+        if (product != null) {
+            if (product == node.right) {
+                // c is evaluated first but is the last argument of fma
+                var local = this.allocLocal(ValueType.createNumber());
+                node.left.accept(this);
+                this.method.visitVarInsn(Opcodes.DSTORE, local);
+                product.left.accept(this);
+                product.right.accept(this);
+                this.method.visitVarInsn(Opcodes.DLOAD, local);
+                this.method.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "fma", "(DDD)D", false);
+                return;
+            }
+            product.left.accept(this);
+            product.right.accept(this);
+            node.right.accept(this);
+            if (node.kind == AstBinOp.Kind.SUB)
+                this.method.visitInsn(Opcodes.DNEG);
+            this.method.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "fma", "(DDD)D", false);
+            return;
+        }
+        if (node.kind == AstBinOp.Kind.LAND || node.kind == AstBinOp.Kind.LOR) {
+            // The left operand is the result if it is false for && or true for ||
+            var out = new Label();
+            node.left.accept(this);
+            this.method.visitInsn(Opcodes.DUP);
+            this.method.visitJumpInsn(node.kind == AstBinOp.Kind.LAND ? Opcodes.IFEQ : Opcodes.IFNE, out);
+            this.method.visitInsn(Opcodes.POP);
+            node.right.accept(this);
+            this.method.visitLabel(out);
+            return;
+        }
         node.left.accept(this);
         node.right.accept(this);
 
@@ -154,12 +296,6 @@ public class CompilerVisitor implements AstVisitor {
                         this.method.visitIntInsn(Opcodes.SIPUSH, 1);
                         this.method.visitLabel(out);
                     }
-                    case LAND -> {
-                        this.method.visitInsn(Opcodes.IAND);
-                    }
-                    case LOR -> {
-                        this.method.visitInsn(Opcodes.IOR);
-                    }
                     default -> throw new IllegalStateException();
                 }
             }
@@ -218,7 +354,8 @@ public class CompilerVisitor implements AstVisitor {
                     case LT -> {
                         var out = new Label();
                         var one = new Label();
-                        this.method.visitInsn(Opcodes.DCMPL);
+                        // DCMPG so that NaN compares as false
+                        this.method.visitInsn(Opcodes.DCMPG);
                         this.method.visitJumpInsn(Opcodes.IFLT, one);
                         this.method.visitIntInsn(Opcodes.SIPUSH, 0);
                         this.method.visitJumpInsn(Opcodes.GOTO, out);
@@ -229,7 +366,8 @@ public class CompilerVisitor implements AstVisitor {
                     case LTE -> {
                         var out = new Label();
                         var one = new Label();
-                        this.method.visitInsn(Opcodes.DCMPL);
+                        // DCMPG so that NaN compares as false
+                        this.method.visitInsn(Opcodes.DCMPG);
                         this.method.visitJumpInsn(Opcodes.IFLE, one);
                         this.method.visitIntInsn(Opcodes.SIPUSH, 0);
                         this.method.visitJumpInsn(Opcodes.GOTO, out);
@@ -296,7 +434,7 @@ public class CompilerVisitor implements AstVisitor {
                     case DEREF -> {
                         var reference_typename = Names.typename(operand_type);
                         var target_descriptor = Names.descriptor(operand_type.getReference().target);
-                        this.env.getContext().compile(operand_type.getReference());
+                        this.context.compile(operand_type.getReference());
                         this.method.visitFieldInsn(Opcodes.GETFIELD, reference_typename, "value", target_descriptor);
                     }
                     default -> throw new IllegalStateException();
@@ -309,24 +447,142 @@ public class CompilerVisitor implements AstVisitor {
     @Override
     public void acceptDecl(AstDecl node) {
         var vtype = node.value.getAnnotation(TypeCheckStage.TYPE_KEY);
-        this.pushEnv(this.env, 0);
+        if (this.context.isScalar(node)) {
+            this.locals.define(node.name, new Variable(vtype, this.compileScalars(node.value)));
+            return;
+        }
+        if (!this.context.isBoxed(node)) {
+            // Calls through immutable bindings of known functions, or of records
+            // with known functions, are direct
+            String function = null;
+            Map<String, String> fields = null;
+            if (node.mutable) {
+                node.value.accept(this);
+            } else {
+                function = this.compileKnown(node.value);
+                var record = moduleRecord(node.value);
+                if (record != null)
+                    fields = this.record_functions.get(record);
+            }
+            var local = this.allocLocal(vtype);
+            this.storeLocal(vtype, local);
+            this.locals.define(node.name, new Variable(vtype, local, null, false, function, fields));
+            return;
+        }
+
+        var reference_type = ValueType.createReference(vtype);
+        var reference_typename = Names.typename(reference_type);
+        this.context.compile(reference_type.getReference());
+        Compiler.compileBasicNew(this.method, reference_typename);
+        this.method.visitInsn(Opcodes.DUP);
         node.value.accept(this);
-        
-        var field = this.env.define(node.name, vtype);
-        this.method.visitFieldInsn(
-                Opcodes.PUTFIELD,
-                this.env.getTypename(),
-                field.field,
-                field.descriptor);
+        this.method.visitFieldInsn(Opcodes.PUTFIELD, reference_typename, "value", Names.descriptor(vtype));
+
+        var local = this.allocLocal(reference_type);
+        this.storeLocal(reference_type, local);
+        this.locals.define(node.name, new Variable(vtype, local, null, true, null, null));
+    }
+
+    /**
+     * Compiles a node that evaluates to a function and finds which function it
+     * is, if that is known at compile time.
+     *
+     * @return The class of the function, or null if it is not known
+     */
+    private String compileKnown(AstNode node) {
+        if (node instanceof AstFn fn)
+            return this.compileFunction(fn);
+
+        node.accept(this);
+        if (node instanceof AstVar var) {
+            var variable = this.locals.lookup(var.name);
+            // Calls to a static method with free variables are only direct in it
+            if (variable == this.self && !this.self_captured.isEmpty())
+                return null;
+            return variable.function;
+        }
+        if (node instanceof AstField field && field.value instanceof AstVar var) {
+            var variable = this.locals.lookup(var.name);
+            String function = null;
+            if (variable.scalars != null)
+                function = variable.scalars.get(field.field).function;
+            else if (variable.fields != null)
+                function = variable.fields.get(field.field);
+            // Record fields are typed with the interface of the function
+            if (function != null && !this.context.staticFunctions())
+                this.method.visitTypeInsn(Opcodes.CHECKCAST, function);
+            return function;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the record literal a node evaluates to, such as the record at the
+     * end of a scope that defines a set of functions.
+     */
+    private static AstRecord moduleRecord(AstNode node) {
+        if (node instanceof AstRecord record)
+            return record;
+        if (node instanceof AstScope scope)
+            return moduleRecord(scope.expr);
+        return null;
+    }
+
+    /**
+     * Compiles the fields of a record literal into new locals instead of
+     * allocating the record.
+     *
+     * @param node A node for which ScalarRecords.isLiteral is true
+     * @return The variables with the fields of the record
+     */
+    private Map<String, Variable> compileScalars(AstNode node) {
+        var rtype = node.getAnnotation(TypeCheckStage.TYPE_KEY).getRecord();
+        // Allocated before compiling the node so the locals outlive its scopes
+        var locals = new HashMap<String, Integer>();
+        for (var i = 0; i < rtype.size(); ++i)
+            locals.put(rtype.name(i), this.allocLocal(rtype.get(rtype.name(i))));
+        var functions = new HashMap<String, String>();
+        this.storeScalars(node, locals, functions);
+
+        var scalars = new HashMap<String, Variable>();
+        for (var i = 0; i < rtype.size(); ++i) {
+            var name = rtype.name(i);
+            scalars.put(name,
+                    new Variable(rtype.get(name), locals.get(name), null, false, functions.get(name), null));
+        }
+        return scalars;
+    }
+
+    private void storeScalars(AstNode node, Map<String, Integer> locals, Map<String, String> functions) {
+        if (node instanceof AstScope scope) {
+            this.compileScope(scope, expr -> this.storeScalars(expr, locals, functions));
+            return;
+        }
+
+        // Fields are evaluated in the order of the literal, like the interpreters do
+        var record = (AstRecord) node;
+        var rtype = record.getAnnotation(TypeCheckStage.TYPE_KEY).getRecord();
+        for (var field : record.fields.entrySet()) {
+            var function = this.compileKnown(field.getValue());
+            if (function != null)
+                functions.put(field.getKey(), function);
+            this.storeLocal(rtype.get(field.getKey()), locals.get(field.getKey()));
+        }
     }
 
     @Override
     public void acceptScope(AstScope node) {
-        this.beginEnv();
+        this.compileScope(node, expr -> expr.accept(this));
+    }
+
+    private void compileScope(AstScope node, Consumer<AstNode> compileExpr) {
+        var next_local = this.next_local;
+        this.locals = this.locals.beginScope();
         for (var stmt : node.stmts)
             stmt.accept(this);
-        node.expr.accept(this);
-        this.endEnv();
+        compileExpr.accept(node.expr);
+        this.locals = this.locals.endScope();
+        this.next_local = next_local;
     }
 
     @Override
@@ -344,17 +600,69 @@ public class CompilerVisitor implements AstVisitor {
         var interface_typename = Names.typename(ftype);
         var call_descriptor = Names.callDescriptor(ftype);
 
-        call.function.accept(this);
+        if (this.context.staticFunctions()) {
+            this.compileStaticCall(call, ftype);
+            return;
+        }
+
+        // Functions known at compile time are called directly
+        var function = this.compileKnown(call.function);
 
         for (var arg : call.arguments)
             arg.accept(this);
 
-        this.method.visitMethodInsn(
-                Opcodes.INVOKEINTERFACE,
-                interface_typename,
+        if (function != null) {
+            this.method.visitMethodInsn(
+                    Opcodes.INVOKESTATIC,
+                    function,
+                    Compiler.INVOKE_METHOD,
+                    Names.invokeDescriptor(function, ftype),
+                    false);
+            return;
+        }
+
+        // The function is the first argument of the call site
+        this.method.visitInvokeDynamicInsn(
                 "call",
-                call_descriptor,
-                true);
+                "(L" + interface_typename + ";" + call_descriptor.substring(1),
+                INLINE_CACHE_BOOTSTRAP);
+    }
+
+    /**
+     * Compiles a call when functions are static methods. Known functions are
+     * called directly with their free variables, the function object is not
+     * needed, a function literal that is called is not even created.
+     */
+    private void compileStaticCall(AstCall call, ValueType.Function ftype) {
+        String function;
+        List<CapturedVariable> captured = List.of();
+        if (call.function instanceof AstFn fn) {
+            captured = this.captured(fn);
+            function = this.compileMethod(fn, captured);
+        } else if (call.function instanceof AstVar var && this.locals.lookup(var.name).function != null) {
+            var variable = this.locals.lookup(var.name);
+            function = variable.function;
+            if (variable == this.self)
+                captured = this.self_captured;
+        } else {
+            function = this.compileKnown(call.function);
+            if (function != null)
+                this.method.visitInsn(Opcodes.POP);
+        }
+        this.pushCaptured(captured);
+
+        for (var arg : call.arguments)
+            arg.accept(this);
+
+        if (function != null) {
+            this.method.visitMethodInsn(Opcodes.INVOKESTATIC, "Main", function,
+                    Names.methodDescriptor(captured, ftype), false);
+            return;
+        }
+        this.method.visitInvokeDynamicInsn(
+                "call",
+                "(" + Names.descriptor(ftype) + Names.callDescriptor(ftype).substring(1),
+                INLINE_CACHE_BOOTSTRAP);
     }
 
     @Override
@@ -372,9 +680,7 @@ public class CompilerVisitor implements AstVisitor {
         for (var i = 0; i < astIf.conditionals.size(); ++i) {
             var conditional = astIf.conditionals.get(i);
             this.method.visitLabel(labels[i]);
-            conditional.condition.accept(this);
-            this.method.visitInsn(Opcodes.ICONST_1);
-            this.method.visitJumpInsn(Opcodes.IF_ICMPNE, labels[i + 1]);
+            this.branch(conditional.condition, false, labels[i + 1]);
             conditional.expression.accept(this);
             this.method.visitJumpInsn(Opcodes.GOTO, labels[end_label_idx]);
         }
@@ -384,14 +690,82 @@ public class CompilerVisitor implements AstVisitor {
         this.method.visitLabel(labels[end_label_idx]);
     }
 
+    /**
+     * Compiles a boolean condition that jumps to a label instead of pushing its
+     * value. Comparisons of numbers jump on the result of DCMPL/DCMPG, where
+     * the variant is chosen so a NaN operand makes the comparison false.
+     *
+     * @param when   The value of the condition that takes the jump
+     * @param target The label to jump to
+     */
+    private void branch(AstNode condition, boolean when, Label target) {
+        if (condition instanceof AstBool constant) {
+            if (constant.value == when)
+                this.method.visitJumpInsn(Opcodes.GOTO, target);
+            return;
+        }
+
+        if (condition instanceof AstUnaryOp unary && unary.kind == AstUnaryOp.Kind.LNOT) {
+            this.branch(unary.expr, !when, target);
+            return;
+        }
+
+        if (condition instanceof AstBinOp binop) {
+            var operand_type = binop.left.getAnnotation(TypeCheckStage.TYPE_KEY);
+            switch (binop.kind) {
+                case LAND, LOR -> {
+                    // The left operand decides the result if it is false for && or true for ||
+                    var decides = binop.kind == AstBinOp.Kind.LOR;
+                    if (decides == when) {
+                        this.branch(binop.left, when, target);
+                        this.branch(binop.right, when, target);
+                    } else {
+                        var skip = new Label();
+                        this.branch(binop.left, decides, skip);
+                        this.branch(binop.right, when, target);
+                        this.method.visitLabel(skip);
+                    }
+                    return;
+                }
+                case CMP, GT, GTE, LT, LTE -> {
+                    if (operand_type.isKind(ValueType.Kind.Number)) {
+                        binop.left.accept(this);
+                        binop.right.accept(this);
+                        var less = binop.kind == AstBinOp.Kind.LT || binop.kind == AstBinOp.Kind.LTE;
+                        this.method.visitInsn(less ? Opcodes.DCMPG : Opcodes.DCMPL);
+                        var opcode = switch (binop.kind) {
+                            case CMP -> when ? Opcodes.IFEQ : Opcodes.IFNE;
+                            case GT -> when ? Opcodes.IFGT : Opcodes.IFLE;
+                            case GTE -> when ? Opcodes.IFGE : Opcodes.IFLT;
+                            case LT -> when ? Opcodes.IFLT : Opcodes.IFGE;
+                            case LTE -> when ? Opcodes.IFLE : Opcodes.IFGT;
+                            default -> throw new IllegalStateException();
+                        };
+                        this.method.visitJumpInsn(opcode, target);
+                        return;
+                    }
+                    if (operand_type.isKind(ValueType.Kind.Boolean)) {
+                        binop.left.accept(this);
+                        binop.right.accept(this);
+                        this.method.visitJumpInsn(when ? Opcodes.IF_ICMPEQ : Opcodes.IF_ICMPNE, target);
+                        return;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+
+        condition.accept(this);
+        this.method.visitJumpInsn(when ? Opcodes.IFNE : Opcodes.IFEQ, target);
+    }
+
     @Override
     public void acceptLoop(AstLoop loop) {
         var cond_label = new Label();
         var end_label = new Label();
         this.method.visitLabel(cond_label);
-        loop.condition.accept(this);
-        this.method.visitInsn(Opcodes.ICONST_1);
-        this.method.visitJumpInsn(Opcodes.IF_ICMPNE, end_label);
+        this.branch(loop.condition, false, end_label);
         loop.body.accept(this);
         this.method.visitJumpInsn(Opcodes.GOTO, cond_label);
         this.method.visitLabel(end_label);
@@ -399,24 +773,20 @@ public class CompilerVisitor implements AstVisitor {
 
     @Override
     public void acceptAssign(AstAssign assign) {
-        var lookup = this.env.lookup(assign.name).get();
-        var ltype = lookup.field.type;
+        var variable = this.locals.lookup(assign.name);
         var rtype = assign.value.getAnnotation(TypeCheckStage.TYPE_KEY);
 
-        // Special case rvalue void
-        if (rtype.isKind(ValueType.Kind.Void)) {
-            this.method.visitInsn(Opcodes.ACONST_NULL);
-            this.method.visitFieldInsn(
-                    Opcodes.PUTFIELD,
-                    lookup.env.getTypename(),
-                    lookup.field.field,
-                    lookup.field.descriptor);
+        if (variable.boxed) {
+            this.pushStorage(variable);
+            assign.value.accept(this);
+            this.method.visitFieldInsn(Opcodes.PUTFIELD, Names.typename(variable.storage()), "value",
+                    Names.descriptor(variable.type));
             return;
         }
 
         // Special case lvalue reference
-        if (ltype.isKind(ValueType.Kind.Reference)) {
-            var reference_typename = Names.typename(ltype);
+        if (variable.type.isKind(ValueType.Kind.Reference)) {
+            var reference_typename = Names.typename(variable.type);
             var target_descriptor = Names.descriptor(rtype);
 
             this.pushVar(assign.name);
@@ -429,20 +799,14 @@ public class CompilerVisitor implements AstVisitor {
             return;
         }
 
-        this.pushEnv(this.env, lookup.depth);
+        // Variables that are not boxed can only be assigned where they are declared
         assign.value.accept(this);
-        this.method.visitFieldInsn(
-                Opcodes.PUTFIELD,
-                lookup.env.getTypename(),
-                lookup.field.field,
-                lookup.field.descriptor);
+        this.storeLocal(variable.type, variable.local);
     }
 
     @Override
     public void acceptPrint(AstPrint print) {
         var expr_type = print.expr.getAnnotation(TypeCheckStage.TYPE_KEY);
-        this.method.visitFieldInsn(Opcodes.GETSTATIC, "java/lang/System", "out",
-                "Ljava/io/PrintStream;");
         print.expr.accept(this);
 
         if (expr_type.isKind(ValueType.Kind.Number)) {
@@ -464,7 +828,7 @@ public class CompilerVisitor implements AstVisitor {
         }
 
         var method_name = print.newline ? "println" : "print";
-        this.method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/io/PrintStream",
+        this.method.visitMethodInsn(Opcodes.INVOKESTATIC, Compiler.OUTPUT_TYPENAME,
                 method_name, "(Ljava/lang/String;)V", false);
     }
 
@@ -472,8 +836,10 @@ public class CompilerVisitor implements AstVisitor {
     public void acceptNew(AstNew anew) {
         var value_type = anew.value.getAnnotation(TypeCheckStage.TYPE_KEY);
         var value_descriptor = Names.descriptor(value_type);
-        var reference_typename = Names.typename(ValueType.createReference(value_type));
+        var reference_type = ValueType.createReference(value_type);
+        var reference_typename = Names.typename(reference_type);
 
+        this.context.compile(reference_type.getReference());
         Compiler.compileBasicNew(this.method, reference_typename);
         this.method.visitInsn(Opcodes.DUP);
         anew.value.accept(this);
@@ -482,47 +848,86 @@ public class CompilerVisitor implements AstVisitor {
 
     @Override
     public void acceptFn(AstFn fn) {
-        this.beginEnv();
-        var context = this.env.getContext();
+        this.compileFunction(fn);
+    }
+
+    /**
+     * Compiles the class of a function and pushes a new instance of it.
+     * When functions are static methods, compiles its method and pushes a
+     * function object created by LambdaMetafactory.
+     *
+     * @return The name of the class, or of the method if the function has no
+     *         free variables
+     */
+    private String compileFunction(AstFn fn) {
         var function_type = fn.getAnnotation(TypeCheckStage.TYPE_KEY).getFunction();
-        var function_typename = context.generate(Namespace.FUNCTION);
-        this.env.define("this", ValueType.createFunction(function_type));
+        var captured = this.captured(fn);
+        if (this.context.staticFunctions()) {
+            var name = this.compileMethod(fn, captured);
+            this.pushCaptured(captured);
+            Compiler.compileLambda(this.method, name, function_type, captured);
+            // Direct calls need the free variables, which are not known where
+            // the function object is used
+            return captured.isEmpty() ? name : null;
+        }
 
-        var compiled = Compiler.compile(this.env, function_typename, fn);
-        context.emit(compiled);
-        context.compile(function_type);
+        var function_typename = this.context.generate(Namespace.FUNCTION);
+        var compiled = Compiler.compile(this.context, function_typename, fn, captured);
+        this.context.emit(compiled);
+        this.context.compile(function_type);
 
+        // The function object holds a copy of every free variable
         Compiler.compileBasicNew(this.method, function_typename);
-        this.method.visitVarInsn(Opcodes.ASTORE, SL_SCRATCH);
-
-        var this_field = this.env.lookup("this").get().field;
-        this.pushEnv(this.env, 0);
-        this.method.visitVarInsn(Opcodes.ALOAD, SL_SCRATCH);
-        this.method.visitFieldInsn(Opcodes.PUTFIELD, this.env.getTypename(), this_field.field, this_field.descriptor);
+        for (var variable : captured) {
+            this.method.visitInsn(Opcodes.DUP);
+            this.pushStorage(this.locals.lookup(variable.name));
+            this.method.visitFieldInsn(Opcodes.PUTFIELD, function_typename, variable.name, variable.getDescriptor());
+        }
+        return function_typename;
+    }
 
-        this.method.visitVarInsn(Opcodes.ALOAD, SL_SCRATCH);
-        this.pushEnv(this.env, 0);
-        this.method.visitFieldInsn(Opcodes.PUTFIELD, function_typename, "frame", this.env.getDescriptor());
+    /**
+     * Compiles a function to a static method of the Main class.
+     *
+     * @return The name of the method
+     */
+    private String compileMethod(AstFn fn, List<CapturedVariable> captured) {
+        var name = this.context.generate(Namespace.FUNCTION);
+        this.context.emit(Compiler.compileMethod(this.context, name, fn, captured));
+        this.context.compile(fn.getAnnotation(TypeCheckStage.TYPE_KEY).getFunction());
+        return name;
+    }
 
-        this.method.visitVarInsn(Opcodes.ALOAD, SL_SCRATCH);
-        this.endEnv();
+    private List<CapturedVariable> captured(AstFn fn) {
+        var captured = new ArrayList<CapturedVariable>();
+        for (var name : this.context.free(fn)) {
+            var variable = this.locals.lookup(name);
+            captured.add(new CapturedVariable(name, variable.type, variable.boxed, variable.function,
+                    variable.fields));
+        }
+        return captured;
     }
 
     @Override
     public void acceptRecord(AstRecord record) {
-        var context = this.env.getContext();
         var vtype = record.getAnnotation(TypeCheckStage.TYPE_KEY).getRecord();
         var record_typename = Names.typename(vtype);
 
-        context.compile(vtype);
+        this.context.compile(vtype);
         Compiler.compileBasicNew(this.method, record_typename);
 
-        for (var field : vtype.fields()) {
+        // Fields are evaluated in the order of the literal, like the interpreters do
+        var functions = new HashMap<String, String>();
+        for (var field : record.fields.entrySet()) {
             this.method.visitInsn(Opcodes.DUP);
-            record.fields.get(field.getKey()).accept(this);
-            this.method.visitFieldInsn(Opcodes.PUTFIELD, record_typename, field.getKey(),
-                    Names.descriptor(field.getValue()));
+            var function = this.compileKnown(field.getValue());
+            if (function != null)
+                functions.put(field.getKey(), function);
+            this.method.visitFieldInsn(Opcodes.PUTFIELD, record_typename, Names.field(vtype, field.getKey()),
+                    Names.descriptor(vtype.get(field.getKey())));
         }
+        if (!functions.isEmpty())
+            this.record_functions.put(record, functions);
     }
 
     @Override
@@ -531,8 +936,24 @@ public class CompilerVisitor implements AstVisitor {
         var record_typename = Names.typename(rtype);
         var field_descriptor = Names.descriptor(rtype.get(field.field));
 
+        // Fields of records that are never allocated are read from their locals
+        if (field.value instanceof AstVar var) {
+            var scalars = this.locals.lookup(var.name).scalars;
+            if (scalars != null) {
+                var scalar = scalars.get(field.field);
+                this.loadLocal(scalar.type, scalar.local);
+                return;
+            }
+        }
+        if (ScalarRecords.isLiteral(field.value)) {
+            var scalar = this.compileScalars(field.value).get(field.field);
+            this.loadLocal(scalar.type, scalar.local);
+            return;
+        }
+
         field.value.accept(this);
-        this.method.visitFieldInsn(Opcodes.GETFIELD, record_typename, field.field, field_descriptor);
+        this.method.visitFieldInsn(Opcodes.GETFIELD, record_typename, Names.field(rtype, field.field),
+                field_descriptor);
     }
 
     @Override
@@ -557,7 +978,7 @@ public class CompilerVisitor implements AstVisitor {
             case COS -> {
                 this.method.visitMethodInsn(
                         Opcodes.INVOKESTATIC,
-                        "java/lang/Math",
+                        FastMathStage.isFast(builtin) ? Compiler.FAST_MATH_TYPENAME : "java/lang/Math",
                         "cos",
                         "(D)D",
                         false);
@@ -592,7 +1013,7 @@ public class CompilerVisitor implements AstVisitor {
             case SIN -> {
                 this.method.visitMethodInsn(
                         Opcodes.INVOKESTATIC,
-                        "java/lang/Math",
+                        FastMathStage.isFast(builtin) ? Compiler.FAST_MATH_TYPENAME : "java/lang/Math",
                         "sin",
                         "(D)D",
                         false);
@@ -608,7 +1029,7 @@ public class CompilerVisitor implements AstVisitor {
             case TAN -> {
                 this.method.visitMethodInsn(
                         Opcodes.INVOKESTATIC,
-                        "java/lang/Math",
+                        FastMathStage.isFast(builtin) ? Compiler.FAST_MATH_TYPENAME : "java/lang/Math",
                         "tan",
                         "(D)D",
                         false);
@@ -7,32 +7,96 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.objectweb.asm.tree.MethodNode;
+
 import icl.ValueType;
+import icl.ast.AstDecl;
+import icl.ast.AstFn;
+import icl.ast.AstNode;
+import icl.stages.resolve.Captures;
 
 public class Context {
     public static enum Namespace {
-        STACKFRAME,
-        VARIABLE,
-        RECORD,
         FUNCTION,
-        FUNCTION_INTERFACE,
-        ENVIRONMENT,
     }
 
-    private final Set<Environment> compiled_environments;
-    private final Set<ValueType.Function> compiled_function_interfaces;
-    private final Set<ValueType.Record> compiled_records;
-    private final Set<ValueType.Reference> compiled_references;
+    // Typenames of the compiled classes of types, types whose values have the
+    // same layout share a class
+    private final Set<String> compiled_function_interfaces;
+    private final Set<String> compiled_records;
+    private final Set<String> compiled_references;
     private final List<CompiledClass> compiled_classes;
+    // Functions compiled to static methods of the Main class
+    private final List<MethodNode> methods;
+    private final boolean static_functions;
     private final Map<Namespace, Integer> name_counters;
+    private final Captures captures;
+    private final ScalarRecords scalar_records;
 
     public Context() {
-        this.compiled_environments = new HashSet<>();
+        this(false);
+    }
+
+    /**
+     * @param static_functions Compile functions to static methods of the Main
+     *                         class, with function objects created by
+     *                         LambdaMetafactory, instead of to a class each
+     */
+    public Context(boolean static_functions) {
         this.compiled_function_interfaces = new HashSet<>();
         this.compiled_records = new HashSet<>();
         this.compiled_references = new HashSet<>();
         this.compiled_classes = new ArrayList<>();
+        this.methods = new ArrayList<>();
+        this.static_functions = static_functions;
         this.name_counters = new HashMap<>();
+        this.captures = new Captures();
+        this.scalar_records = new ScalarRecords();
+    }
+
+    /**
+     * Finds the free variables of the functions in the node and the records that
+     * do not escape, must be called before compiling the node.
+     */
+    public void analyze(AstNode node) {
+        this.captures.analyze(node);
+        this.scalar_records.analyze(node);
+    }
+
+    /**
+     * @return The free variables of the function, in the order they are copied
+     *         into the function object
+     */
+    public List<String> free(AstFn fn) {
+        return this.captures.free(fn);
+    }
+
+    /**
+     * Checks if a variable is shared with closures through a reference.
+     * Every other variable is kept in a JVM local.
+     */
+    public boolean isBoxed(AstDecl decl) {
+        return this.captures.isBoxed(decl);
+    }
+
+    /**
+     * Checks if the record a variable is bound to is replaced by a local for each
+     * of its fields.
+     */
+    public boolean isScalar(AstDecl decl) {
+        return this.scalar_records.isScalar(decl);
+    }
+
+    public boolean staticFunctions() {
+        return this.static_functions;
+    }
+
+    public void emit(MethodNode method) {
+        this.methods.add(method);
+    }
+
+    public List<MethodNode> methods() {
+        return List.copyOf(this.methods);
     }
 
     public void emit(CompiledClass compiled_class) {
@@ -45,34 +109,23 @@ public class Context {
         return kind.name().toLowerCase() + "_" + current;
     }
 
-    public void compile(Environment env) {
-        if (this.compiled_environments.contains(env))
-            throw new RuntimeException("Environment already compiled");
-        this.compiled_environments.add(env);
-        var compiled = Compiler.compile(env);
-        this.emit(compiled);
-    }
-
     public void compile(ValueType.Function fn) {
-        if (this.compiled_function_interfaces.contains(fn))
+        if (!this.compiled_function_interfaces.add(Names.typename(fn)))
             return;
-        this.compiled_function_interfaces.add(fn);
         var compiled = Compiler.compile(fn);
         this.emit(compiled);
     }
 
     public void compile(ValueType.Record record) {
-        if (this.compiled_records.contains(record))
+        if (!this.compiled_records.add(Names.typename(record)))
             return;
-        this.compiled_records.add(record);
         var compiled = Compiler.compile(record);
         this.emit(compiled);
     }
 
     public void compile(ValueType.Reference ref) {
-        if (this.compiled_references.contains(ref))
+        if (!this.compiled_references.add(Names.typename(ref)))
             return;
-        this.compiled_references.add(ref);
         var compiled = Compiler.compile(ref);
         this.emit(compiled);
     }
@@ -1,14 +0,0 @@
-package icl.stages.jvm;
-
-public class EnvironmentLookup {
-    public final Environment env;
-    public final EnvironmentField field;
-    public final int depth;
-
-    public EnvironmentLookup(Environment env, EnvironmentField field, int depth) {
-        this.env = env;
-        this.field = field;
-        this.depth = depth;
-    }
-
-}
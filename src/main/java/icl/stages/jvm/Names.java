@@ -1,6 +1,7 @@
 package icl.stages.jvm;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
 import icl.ValueType;
 
@@ -30,16 +31,28 @@ public class Names {
         return hash(sb.toString());
     }
 
+    /**
+     * Records with the same field types in their layout share a class, the
+     * names of the fields are not part of it.
+     */
     public static String typename(ValueType.Record record) {
         var sb = new StringBuilder();
         sb.append("record");
-        for (var ftype : record.fields()) {
+        for (var i = 0; i < record.size(); ++i) {
             sb.append("_");
-            sb.append(mangle(ftype.getValue()));
+            sb.append(mangle(record.get(record.name(i))));
         }
         return hash(sb.toString());
     }
 
+    /**
+     * @return The name of the JVM field that stores a field of a record, from
+     *         its index in the record layout
+     */
+    public static String field(ValueType.Record record, String name) {
+        return "f" + record.indexOf(name);
+    }
+
     public static String typename(ValueType.Reference ref) {
         var sb = new StringBuilder();
         sb.append("ref_");
@@ -80,6 +93,38 @@ public class Names {
         return sb.toString();
     }
 
+    /**
+     * Descriptor of the static method with the body of a function, it takes the
+     * function object followed by the arguments.
+     */
+    public static String invokeDescriptor(String function_typename, ValueType.Function fn) {
+        return "(" + typenameToDescriptor(function_typename) + callDescriptor(fn).substring(1);
+    }
+
+    /**
+     * Descriptor of the static method with the body of a function, when
+     * functions are static methods. It takes the free variables of the function
+     * followed by the arguments.
+     */
+    public static String methodDescriptor(List<CapturedVariable> captured, ValueType.Function fn) {
+        return "(" + capturedDescriptor(captured) + callDescriptor(fn).substring(1);
+    }
+
+    /**
+     * @return The descriptors of the free variables of a function passed to a
+     *         static method, functions are passed as their interface
+     */
+    public static String capturedDescriptor(List<CapturedVariable> captured) {
+        var sb = new StringBuilder();
+        for (var variable : captured) {
+            if (variable.boxed)
+                sb.append(descriptor(ValueType.createReference(variable.type)));
+            else
+                sb.append(descriptor(variable.type));
+        }
+        return sb.toString();
+    }
+
     public static String typenameToDescriptor(String typename) {
         return "L" + typename + ";";
     }
@@ -106,10 +151,11 @@ public class Names {
             case Record -> {
                 var record = vtype.getRecord();
                 var sb = new StringBuilder();
-                sb.append("r");
-                for (var ftype : record.fields()) {
-                    sb.append(mangleHelper(ftype.getValue()));
+                sb.append("{");
+                for (var i = 0; i < record.size(); ++i) {
+                    sb.append(mangleHelper(record.get(record.name(i))));
                 }
+                sb.append("}");
                 yield sb.toString();
             }
             case Reference -> {
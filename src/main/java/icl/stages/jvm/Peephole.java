@@ -0,0 +1,256 @@
+package icl.stages.jvm;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/*-
+ * Local optimizations of the bytecode of a method, applied to the methods with
+ * generated bodies before they are written to their class:
+ *
+ *  SIPUSH/BIPUSH c                    ->  ICONST_c, -1 <= c <= 5
+ *  xSTORE n; xLOAD n                  ->  DUP; xSTORE n
+ *  xLOAD n; xSTORE n                  ->  nothing
+ *  ICONST_c; IFEQ/IFNE L              ->  GOTO L or nothing
+ *  ICONST_c; GOTO L, L: IFEQ/IFNE M   ->  GOTO M or GOTO past the IFEQ/IFNE
+ *  jump to L, L: GOTO M               ->  jump to M
+ *  GOTO L, L: xRETURN                 ->  xRETURN
+ *  GOTO to the next instruction       ->  nothing
+ *
+ * Instructions after a GOTO, return or throw that no jump reaches and labels
+ * that nothing refers to are removed, which makes more instructions adjacent.
+ * The rewrites are applied until none matches.
+ */
+final class Peephole {
+    // Longest chain of GOTOs followed by a single jump
+    private static final int MAX_HOPS = 16;
+
+    private Peephole() {
+    }
+
+    static void optimize(MethodNode method) {
+        var changed = true;
+        while (changed) {
+            changed = constants(method.instructions)
+                    | stores(method.instructions)
+                    | branches(method.instructions)
+                    | unreachable(method);
+        }
+    }
+
+    private static boolean constants(InsnList insns) {
+        var changed = false;
+        for (var insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof IntInsnNode push && push.getOpcode() != Opcodes.NEWARRAY
+                    && push.operand >= -1 && push.operand <= 5) {
+                var constant = new InsnNode(Opcodes.ICONST_0 + push.operand);
+                insns.set(push, constant);
+                insn = constant;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean stores(InsnList insns) {
+        var changed = false;
+        var insn = insns.getFirst();
+        while (insn != null) {
+            var next = insn.getNext();
+            if (insn instanceof VarInsnNode first && next instanceof VarInsnNode second && first.var == second.var) {
+                if (isStore(first) && second.getOpcode() == loadOpcode(first)) {
+                    var wide = first.getOpcode() == Opcodes.DSTORE || first.getOpcode() == Opcodes.LSTORE;
+                    insns.insertBefore(first, new InsnNode(wide ? Opcodes.DUP2 : Opcodes.DUP));
+                    next = second.getNext();
+                    insns.remove(second);
+                    changed = true;
+                } else if (isStore(second) && first.getOpcode() == loadOpcode(second)) {
+                    next = second.getNext();
+                    insns.remove(first);
+                    insns.remove(second);
+                    changed = true;
+                }
+            }
+            insn = next;
+        }
+        return changed;
+    }
+
+    private static boolean branches(InsnList insns) {
+        var changed = false;
+        var insn = insns.getFirst();
+        while (insn != null) {
+            var next = insn.getNext();
+            if (insn instanceof JumpInsnNode jump)
+                changed |= branch(insns, jump);
+            insn = next;
+        }
+        return changed;
+    }
+
+    private static boolean branch(InsnList insns, JumpInsnNode jump) {
+        var opcode = jump.getOpcode();
+        var previous = jump.getPrevious();
+        var constant = previous == null ? -1 : previous.getOpcode();
+        var target = instruction(jump.label);
+
+        // The value of a constant condition is known
+        if ((opcode == Opcodes.IFEQ || opcode == Opcodes.IFNE)
+                && (constant == Opcodes.ICONST_0 || constant == Opcodes.ICONST_1)) {
+            insns.remove(previous);
+            if (taken(opcode, constant))
+                insns.set(jump, new JumpInsnNode(Opcodes.GOTO, jump.label));
+            else
+                insns.remove(jump);
+            return true;
+        }
+
+        // A constant pushed to be tested after the jump
+        if (opcode == Opcodes.GOTO && (constant == Opcodes.ICONST_0 || constant == Opcodes.ICONST_1)
+                && target != null && (target.getOpcode() == Opcodes.IFEQ || target.getOpcode() == Opcodes.IFNE)) {
+            var test = (JumpInsnNode) target;
+            insns.remove(previous);
+            jump.label = taken(test.getOpcode(), constant) ? test.label : labelAfter(insns, test);
+            return true;
+        }
+
+        var threaded = thread(jump);
+        if (threaded != jump.label) {
+            jump.label = threaded;
+            return true;
+        }
+
+        if (opcode != Opcodes.GOTO)
+            return false;
+        if (target != null && target.getOpcode() >= Opcodes.IRETURN && target.getOpcode() <= Opcodes.RETURN) {
+            insns.set(jump, new InsnNode(target.getOpcode()));
+            return true;
+        }
+        for (var insn = jump.getNext(); insn != null && insn.getOpcode() < 0; insn = insn.getNext()) {
+            if (insn == jump.label) {
+                insns.remove(jump);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The label a jump ends up at after following the GOTOs at its
+     *         target, or its own label if they form a cycle
+     */
+    private static LabelNode thread(JumpInsnNode jump) {
+        var label = jump.label;
+        for (var hops = 0; hops < MAX_HOPS; ++hops) {
+            var target = instruction(label);
+            if (!(target instanceof JumpInsnNode next) || next.getOpcode() != Opcodes.GOTO)
+                return label;
+            if (next == jump || next.label == label)
+                return jump.label;
+            label = next.label;
+        }
+        return jump.label;
+    }
+
+    /**
+     * Removes the instructions that can not be reached and the labels that are
+     * not referred to.
+     */
+    private static boolean unreachable(MethodNode method) {
+        var insns = method.instructions;
+        var labels = referenced(method);
+        var changed = false;
+        var reachable = true;
+        var insn = insns.getFirst();
+        while (insn != null) {
+            var next = insn.getNext();
+            if (insn instanceof LabelNode label && labels.contains(label))
+                reachable = true;
+            if (!reachable || (insn instanceof LabelNode label && !labels.contains(label))) {
+                insns.remove(insn);
+                changed = true;
+            } else if (isExit(insn)) {
+                reachable = false;
+            }
+            insn = next;
+        }
+        return changed;
+    }
+
+    private static Set<LabelNode> referenced(MethodNode method) {
+        var labels = new HashSet<LabelNode>();
+        for (var insn : method.instructions) {
+            if (insn instanceof JumpInsnNode jump)
+                labels.add(jump.label);
+            else if (insn instanceof TableSwitchInsnNode table) {
+                labels.add(table.dflt);
+                labels.addAll(table.labels);
+            } else if (insn instanceof LookupSwitchInsnNode lookup) {
+                labels.add(lookup.dflt);
+                labels.addAll(lookup.labels);
+            } else if (insn instanceof LineNumberNode line)
+                labels.add(line.start);
+        }
+        for (TryCatchBlockNode block : method.tryCatchBlocks) {
+            labels.add(block.start);
+            labels.add(block.end);
+            labels.add(block.handler);
+        }
+        if (method.localVariables != null) {
+            for (LocalVariableNode variable : method.localVariables) {
+                labels.add(variable.start);
+                labels.add(variable.end);
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * @return The first instruction at or after a node, skipping labels
+     */
+    private static AbstractInsnNode instruction(AbstractInsnNode node) {
+        while (node != null && node.getOpcode() < 0)
+            node = node.getNext();
+        return node;
+    }
+
+    private static LabelNode labelAfter(InsnList insns, AbstractInsnNode insn) {
+        if (insn.getNext() instanceof LabelNode label)
+            return label;
+        var label = new LabelNode();
+        insns.insert(insn, label);
+        return label;
+    }
+
+    private static boolean taken(int opcode, int constant) {
+        return (opcode == Opcodes.IFEQ) == (constant == Opcodes.ICONST_0);
+    }
+
+    private static boolean isExit(AbstractInsnNode insn) {
+        var opcode = insn.getOpcode();
+        return opcode == Opcodes.GOTO || opcode == Opcodes.ATHROW
+                || (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN);
+    }
+
+    private static boolean isStore(VarInsnNode insn) {
+        return insn.getOpcode() >= Opcodes.ISTORE && insn.getOpcode() <= Opcodes.ASTORE;
+    }
+
+    private static int loadOpcode(VarInsnNode store) {
+        return store.getOpcode() - Opcodes.ISTORE + Opcodes.ILOAD;
+    }
+}
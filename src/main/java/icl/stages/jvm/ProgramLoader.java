@@ -0,0 +1,46 @@
+package icl.stages.jvm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Defines the classes of one compiled program.
+ * The classes of the program are looked up here before the parent, the
+ * runtime classes are left to the parent so the program shares them with the
+ * host.
+ */
+class ProgramLoader extends ClassLoader {
+    private final Map<String, byte[]> classes;
+
+    ProgramLoader(CompilerOutput output) {
+        super(ProgramLoader.class.getClassLoader());
+        this.classes = new HashMap<>();
+        for (var compiled : output.classes)
+            this.classes.put(compiled.name, compiled.bytecode);
+        for (var runtime : Compiler.runtime())
+            this.classes.remove(runtime.name);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!this.classes.containsKey(name))
+            return super.loadClass(name, resolve);
+
+        synchronized (this.getClassLoadingLock(name)) {
+            var loaded = this.findLoadedClass(name);
+            if (loaded == null)
+                loaded = this.findClass(name);
+            if (resolve)
+                this.resolveClass(loaded);
+            return loaded;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        var bytecode = this.classes.get(name);
+        if (bytecode == null)
+            throw new ClassNotFoundException(name);
+        return this.defineClass(name, bytecode, 0, bytecode.length);
+    }
+}
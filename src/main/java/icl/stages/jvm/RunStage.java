@@ -0,0 +1,55 @@
+package icl.stages.jvm;
+
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+
+import icl.pipeline.PipelineStage;
+import icl.runtime.Output;
+
+/**
+ * Runs a compiled program in the current JVM.
+ *
+ * Every run defines the classes in a new class loader. Nothing outside of the
+ * run keeps a reference to it, so the classes can be unloaded once the run
+ * ends and a long lived host can run any number of programs.
+ */
+public class RunStage implements PipelineStage<CompilerOutput, Void> {
+    private final OutputStream out;
+
+    /**
+     * Runs programs with the current output of the host.
+     */
+    public RunStage() {
+        this(null);
+    }
+
+    /**
+     * @param out The stream the program prints to, restored after the run
+     */
+    public RunStage(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public Void process(CompilerOutput input) {
+        var previous = this.out == null ? null : Output.redirect(this.out);
+        try {
+            var loader = new ProgramLoader(input);
+            var main = loader.loadClass("Main").getMethod("main", String[].class);
+            main.invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException exception)
+                throw exception;
+            if (e.getCause() instanceof Error error)
+                throw error;
+            throw new RuntimeException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        } finally {
+            Output.flush();
+            if (previous != null)
+                Output.redirect(previous);
+        }
+        return null;
+    }
+}
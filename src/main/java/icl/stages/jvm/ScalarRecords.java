@@ -0,0 +1,127 @@
+package icl.stages.jvm;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import icl.Environment;
+import icl.ValueType;
+import icl.ast.AstDecl;
+import icl.ast.AstField;
+import icl.ast.AstFn;
+import icl.ast.AstNode;
+import icl.ast.AstRecord;
+import icl.ast.AstScope;
+import icl.ast.AstVar;
+import icl.ast.BaseAstVisitor;
+import icl.stages.typecheck.TypeCheckStage;
+
+/**
+ * Finds the records that do not escape the function they are created in.
+ *
+ * A record bound by an immutable declaration to a record literal, that is only
+ * ever used to read its fields in the same function, never needs to exist.
+ * The compiler keeps each of its fields in a JVM local instead of allocating
+ * the record. Any other use of the variable, including a closure capturing it,
+ * makes the record escape.
+ */
+class ScalarRecords {
+    private static class Declaration {
+        // null for arguments and this
+        final AstDecl decl;
+        final int level;
+
+        Declaration(AstDecl decl, int level) {
+            this.decl = decl;
+            this.level = level;
+        }
+    }
+
+    private final Set<AstDecl> candidates;
+    private final Set<AstDecl> escaped;
+
+    ScalarRecords() {
+        this.candidates = new HashSet<>();
+        this.escaped = new HashSet<>();
+    }
+
+    void analyze(AstNode node) {
+        node.accept(new Visitor());
+    }
+
+    /**
+     * Checks if the fields of the record a declaration is bound to can be kept in
+     * locals instead of allocating the record.
+     */
+    boolean isScalar(AstDecl decl) {
+        return this.candidates.contains(decl) && !this.escaped.contains(decl);
+    }
+
+    /**
+     * Checks if a node evaluates to a record literal, possibly at the end of a
+     * scope, so its fields can be computed without building the record.
+     */
+    static boolean isLiteral(AstNode node) {
+        if (node instanceof AstRecord)
+            return true;
+        if (node instanceof AstScope scope)
+            return isLiteral(scope.expr);
+        return false;
+    }
+
+    private class Visitor extends BaseAstVisitor {
+        private Environment<Declaration> env;
+        private int level;
+
+        Visitor() {
+            this.env = new Environment<>();
+            this.level = 0;
+        }
+
+        @Override
+        public void acceptDecl(AstDecl node) {
+            node.value.accept(this);
+            this.env.define(node.name, new Declaration(node, this.level));
+            var type = node.value.getAnnotation(TypeCheckStage.TYPE_KEY);
+            if (!node.mutable && type.isKind(ValueType.Kind.Record) && isLiteral(node.value))
+                ScalarRecords.this.candidates.add(node);
+        }
+
+        @Override
+        public void acceptScope(AstScope node) {
+            this.env = this.env.beginScope();
+            super.acceptScope(node);
+            this.env = this.env.endScope();
+        }
+
+        @Override
+        public void acceptVar(AstVar node) {
+            var declaration = this.env.lookup(node.name);
+            if (declaration != null && declaration.decl != null)
+                ScalarRecords.this.escaped.add(declaration.decl);
+        }
+
+        @Override
+        public void acceptField(AstField field) {
+            // Reading a field in the function that declared the record is the only
+            // use that does not need the record
+            if (field.value instanceof AstVar var) {
+                var declaration = this.env.lookup(var.name);
+                if (declaration != null && declaration.level == this.level)
+                    return;
+            }
+            super.acceptField(field);
+        }
+
+        @Override
+        public void acceptFn(AstFn fn) {
+            this.env = this.env.beginScope();
+            this.level += 1;
+            for (var arg : fn.arguments)
+                this.env.define(arg.name, new Declaration(null, this.level));
+            this.env.define("this", new Declaration(null, this.level));
+            fn.body.accept(this);
+            this.level -= 1;
+            this.env = this.env.endScope();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package icl.stages.optimize;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import icl.ast.AstAssign;
+import icl.ast.AstBinOp;
+import icl.ast.AstBool;
+import icl.ast.AstBuiltin;
+import icl.ast.AstCall;
+import icl.ast.AstDecl;
+import icl.ast.AstEmptyNode;
+import icl.ast.AstField;
+import icl.ast.AstFn;
+import icl.ast.AstIf;
+import icl.ast.AstLoop;
+import icl.ast.AstNew;
+import icl.ast.AstNode;
+import icl.ast.AstNum;
+import icl.ast.AstPrint;
+import icl.ast.AstRecord;
+import icl.ast.AstScope;
+import icl.ast.AstStr;
+import icl.ast.AstTypeAlias;
+import icl.ast.AstUnaryOp;
+import icl.ast.AstVar;
+import icl.ast.AstVisitor;
+
+/**
+ * Base visitor that builds a copy of the tree.
+ * Every node is copied with the annotations of the original, so the copy can be
+ * used in place of the original by the stages that follow. Subclasses override
+ * the nodes they transform.
+ */
+class AstRewriter implements AstVisitor {
+    private AstNode result;
+
+    AstNode rewrite(AstNode node) {
+        node.accept(this);
+        var result = this.result;
+        this.result = null;
+        return result;
+    }
+
+    List<AstNode> rewrite(List<AstNode> nodes) {
+        var result = new ArrayList<AstNode>(nodes.size());
+        for (var node : nodes)
+            result.add(this.rewrite(node));
+        return result;
+    }
+
+    /**
+     * Sets the result of the node being visited.
+     */
+    void result(AstNode node) {
+        this.result = node;
+    }
+
+    /**
+     * Sets the result of the node being visited to a copy of it.
+     */
+    void result(AstNode original, AstNode copy) {
+        copy.annotateFrom(original);
+        this.result = copy;
+    }
+
+    @Override
+    public void acceptNum(AstNum node) {
+        this.result(node, new AstNum(node.value));
+    }
+
+    @Override
+    public void acceptBool(AstBool node) {
+        this.result(node, new AstBool(node.value));
+    }
+
+    @Override
+    public void acceptStr(AstStr node) {
+        this.result(node, new AstStr(node.value));
+    }
+
+    @Override
+    public void acceptBinOp(AstBinOp node) {
+        var left = this.rewrite(node.left);
+        var right = this.rewrite(node.right);
+        this.result(node, new AstBinOp(node.kind, left, right));
+    }
+
+    @Override
+    public void acceptUnaryOp(AstUnaryOp node) {
+        this.result(node, new AstUnaryOp(node.kind, this.rewrite(node.expr)));
+    }
+
+    @Override
+    public void acceptDecl(AstDecl node) {
+        this.result(node, new AstDecl(node.name, this.rewrite(node.value), node.mutable, node.type));
+    }
+
+    @Override
+    public void acceptScope(AstScope node) {
+        var stmts = this.rewrite(node.stmts);
+        var expr = this.rewrite(node.expr);
+        this.result(node, new AstScope(stmts, expr));
+    }
+
+    @Override
+    public void acceptEmptyNode(AstEmptyNode node) {
+        this.result(node, new AstEmptyNode());
+    }
+
+    @Override
+    public void acceptVar(AstVar node) {
+        this.result(node, new AstVar(node.name));
+    }
+
+    @Override
+    public void acceptCall(AstCall call) {
+        var function = this.rewrite(call.function);
+        var arguments = this.rewrite(call.arguments);
+        this.result(call, new AstCall(function, arguments));
+    }
+
+    @Override
+    public void acceptIf(AstIf astIf) {
+        var conditionals = new ArrayList<AstIf.Conditional>();
+        for (var cond : astIf.conditionals) {
+            var condition = this.rewrite(cond.condition);
+            var expression = this.rewrite(cond.expression);
+            conditionals.add(new AstIf.Conditional(condition, expression));
+        }
+        var fallthrough = this.rewrite(astIf.fallthrough);
+        this.result(astIf, new AstIf(conditionals, fallthrough));
+    }
+
+    @Override
+    public void acceptLoop(AstLoop loop) {
+        var condition = this.rewrite(loop.condition);
+        var body = this.rewrite(loop.body);
+        this.result(loop, new AstLoop(condition, body));
+    }
+
+    @Override
+    public void acceptAssign(AstAssign assign) {
+        this.result(assign, new AstAssign(assign.name, this.rewrite(assign.value)));
+    }
+
+    @Override
+    public void acceptPrint(AstPrint print) {
+        this.result(print, new AstPrint(this.rewrite(print.expr), print.newline, print.nodecimal));
+    }
+
+    @Override
+    public void acceptNew(AstNew anew) {
+        this.result(anew, new AstNew(this.rewrite(anew.value)));
+    }
+
+    @Override
+    public void acceptFn(AstFn fn) {
+        this.result(fn, new AstFn(fn.arguments, fn.ret, this.rewrite(fn.body)));
+    }
+
+    @Override
+    public void acceptRecord(AstRecord record) {
+        var fields = new LinkedHashMap<String, AstNode>();
+        for (var field : record.fields.entrySet())
+            fields.put(field.getKey(), this.rewrite(field.getValue()));
+        this.result(record, new AstRecord(fields));
+    }
+
+    @Override
+    public void acceptField(AstField field) {
+        this.result(field, new AstField(this.rewrite(field.value), field.field));
+    }
+
+    @Override
+    public void acceptTypeAlias(AstTypeAlias typeAlias) {
+        this.result(typeAlias, new AstTypeAlias(typeAlias.name, typeAlias.type));
+    }
+
+    @Override
+    public void acceptBuiltin(AstBuiltin builtin) {
+        this.result(builtin, new AstBuiltin(builtin.builtin, this.rewrite(builtin.args)));
+    }
+}
@@ -0,0 +1,68 @@
+package icl.stages.optimize;
+
+import icl.ast.AnnotationKey;
+import icl.ast.AstBinOp;
+import icl.ast.AstNode;
+import icl.pipeline.PipelineStage;
+
+/*-
+ * Opt-in rewrites that trade exactness for speed, see Relaxer.
+ * Programs can print different results with and without this stage, results
+ * are only reproducible between runs in the same mode.
+ *
+ *  x / c                       ->  x * (1 / c), c any finite non zero literal
+ *  $pow(x, 0.5)                ->  $sqrt(x)
+ *  $pow(x, n)                  ->  multiplications by squaring, n an integer
+ *                                  with 2 <= |n| <= 32
+ *  $sqrt(x) > c                ->  x > c * c, also >=, c >= 0
+ *  $sqrt(x) < c                ->  0 <= x && x < c * c, also <=, c >= 0 and
+ *                                  x a variable or a literal
+ *
+ * Annotations:
+ *  - FAST_MATH_KEY: Set on the root node, on $sin, $cos and $tan, that are
+ *    evaluated with icl.runtime.FastMath, and on a * b + c, a * b - c and
+ *    c + a * b, that are evaluated with a single rounding by Math.fma. The
+ *    operands are still evaluated from left to right.
+ *
+ * Must run after the TypeCheckStage.
+ */
+public class FastMathStage implements PipelineStage<AstNode, AstNode> {
+    public static final AnnotationKey<Boolean> FAST_MATH_KEY = new AnnotationKey<>("fast_math");
+
+    private final boolean enabled;
+
+    public FastMathStage(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return If a node was annotated by this stage
+     */
+    public static boolean isFast(AstNode node) {
+        return node.tryGetAnnotation(FAST_MATH_KEY).orElse(false);
+    }
+
+    /**
+     * @return The product of a node evaluated as a fused multiply add, or null.
+     *         It is the right operand only for c + a * b.
+     */
+    public static AstBinOp fusedProduct(AstBinOp node) {
+        if (!isFast(node))
+            return null;
+        if (node.left instanceof AstBinOp product && product.kind == AstBinOp.Kind.MUL)
+            return product;
+        if (node.kind == AstBinOp.Kind.ADD && node.right instanceof AstBinOp product
+                && product.kind == AstBinOp.Kind.MUL)
+            return product;
+        return null;
+    }
+
+    @Override
+    public AstNode process(AstNode input) {
+        if (!this.enabled)
+            return input;
+        var output = new Relaxer().rewrite(input);
+        output.annotate(FAST_MATH_KEY, true);
+        return output;
+    }
+}
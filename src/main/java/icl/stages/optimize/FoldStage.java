@@ -0,0 +1,30 @@
+package icl.stages.optimize;
+
+import icl.ast.AstNode;
+import icl.pipeline.PipelineStage;
+
+/*-
+ * Folds constant expressions and propagates constants, see Folder.
+ *
+ * Folded:
+ *  BinOp:   Number, Boolean and String operators over literals, except IDIV
+ *  UnaryOp: POS, NEG and LNOT over literals
+ *  Builtin: Every builtin except RAND over number literals
+ *  Var:     Uses of immutable variables bound to a literal, the declaration is
+ *           removed
+ *  If:      Branches whose condition is false are removed, a branch whose
+ *           condition is true replaces the whole if
+ *  Loop:    Loops whose condition is false are removed
+ *
+ * Every node in the output keeps the annotations of the node it replaces,
+ * including the TypeCheckStage.TYPE_KEY and ParserStage.SPAN_KEY.
+ *
+ * Must run after the TypeCheckStage.
+ */
+public class FoldStage implements PipelineStage<AstNode, AstNode> {
+
+    @Override
+    public AstNode process(AstNode input) {
+        return new Folder().rewrite(input);
+    }
+}
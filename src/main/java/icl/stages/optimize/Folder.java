@@ -0,0 +1,226 @@
+package icl.stages.optimize;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import icl.Environment;
+import icl.ValueType;
+import icl.ast.AstBinOp;
+import icl.ast.AstBool;
+import icl.ast.AstBuiltin;
+import icl.ast.AstDecl;
+import icl.ast.AstEmptyNode;
+import icl.ast.AstFn;
+import icl.ast.AstIf;
+import icl.ast.AstLoop;
+import icl.ast.AstNode;
+import icl.ast.AstNum;
+import icl.ast.AstScope;
+import icl.ast.AstStr;
+import icl.ast.AstUnaryOp;
+import icl.ast.AstVar;
+import icl.stages.typecheck.TypeCheckStage;
+
+/**
+ * Evaluates the nodes whose operands are all constants and replaces the uses of
+ * immutable variables bound to constants with the constant.
+ *
+ * Constants are number, boolean and string literals. A folded node is replaced
+ * by a literal with the annotations of the original node, a pruned if is
+ * replaced by the branch that is always taken.
+ */
+class Folder extends AstRewriter {
+    // Constant each name is bound to, null for variables that are not constants
+    private Environment<AstNode> env;
+    // Declarations whose uses were all replaced, they are removed from their scope
+    private final Set<AstNode> propagated;
+
+    Folder() {
+        this.env = new Environment<>();
+        this.propagated = new HashSet<>();
+    }
+
+    private static boolean isConstant(AstNode node) {
+        return node instanceof AstNum || node instanceof AstBool || node instanceof AstStr;
+    }
+
+    private void number(AstNode original, double value) {
+        this.result(original, new AstNum(value));
+    }
+
+    private void bool(AstNode original, boolean value) {
+        this.result(original, new AstBool(value));
+    }
+
+    @Override
+    public void acceptBinOp(AstBinOp node) {
+        var left = this.rewrite(node.left);
+        var right = this.rewrite(node.right);
+        if (left instanceof AstNum l && right instanceof AstNum r) {
+            var x = l.value;
+            var y = r.value;
+            switch (node.kind) {
+                case ADD -> this.number(node, x + y);
+                case SUB -> this.number(node, x - y);
+                case MUL -> this.number(node, x * y);
+                case DIV -> this.number(node, x / y);
+                case CMP -> this.bool(node, x == y);
+                case GT -> this.bool(node, x > y);
+                case GTE -> this.bool(node, x >= y);
+                case LT -> this.bool(node, x < y);
+                case LTE -> this.bool(node, x <= y);
+                // The engines do not agree on rounding negative quotients
+                default -> this.result(node, new AstBinOp(node.kind, left, right));
+            }
+            return;
+        }
+        // The right operand of && and || is not evaluated if the left one is
+        // false or true respectively
+        if (left instanceof AstBool l && (node.kind == AstBinOp.Kind.LAND || node.kind == AstBinOp.Kind.LOR)) {
+            if (l.value == (node.kind == AstBinOp.Kind.LOR))
+                this.bool(node, l.value);
+            else
+                this.result(right);
+            return;
+        }
+        if (left instanceof AstBool l && right instanceof AstBool r) {
+            switch (node.kind) {
+                case CMP -> this.bool(node, l.value == r.value);
+                default -> throw new IllegalStateException();
+            }
+            return;
+        }
+        if (left instanceof AstStr l && right instanceof AstStr r) {
+            switch (node.kind) {
+                case ADD -> this.result(node, new AstStr(l.value + r.value));
+                case CMP -> this.bool(node, l.value.equals(r.value));
+                default -> throw new IllegalStateException();
+            }
+            return;
+        }
+        this.result(node, new AstBinOp(node.kind, left, right));
+    }
+
+    @Override
+    public void acceptUnaryOp(AstUnaryOp node) {
+        var expr = this.rewrite(node.expr);
+        if (expr instanceof AstNum n && node.kind != AstUnaryOp.Kind.DEREF) {
+            this.number(node, node.kind == AstUnaryOp.Kind.NEG ? -n.value : n.value);
+            return;
+        }
+        if (expr instanceof AstBool b && node.kind == AstUnaryOp.Kind.LNOT) {
+            this.bool(node, !b.value);
+            return;
+        }
+        this.result(node, new AstUnaryOp(node.kind, expr));
+    }
+
+    @Override
+    public void acceptBuiltin(AstBuiltin builtin) {
+        var args = this.rewrite(builtin.args);
+        var values = new double[args.size()];
+        for (var i = 0; i < args.size(); ++i) {
+            if (!(args.get(i) instanceof AstNum n)) {
+                this.result(builtin, new AstBuiltin(builtin.builtin, args));
+                return;
+            }
+            values[i] = n.value;
+        }
+        switch (builtin.builtin) {
+            case ABS -> this.number(builtin, Math.abs(values[0]));
+            case COS -> this.number(builtin, Math.cos(values[0]));
+            case MAX -> this.number(builtin, Math.max(values[0], values[1]));
+            case MIN -> this.number(builtin, Math.min(values[0], values[1]));
+            case PI -> this.number(builtin, Math.PI);
+            case POW -> this.number(builtin, Math.pow(values[0], values[1]));
+            case SIN -> this.number(builtin, Math.sin(values[0]));
+            case SQRT -> this.number(builtin, Math.sqrt(values[0]));
+            case TAN -> this.number(builtin, Math.tan(values[0]));
+            // Not a function of its arguments
+            case RAND -> this.result(builtin, new AstBuiltin(builtin.builtin, args));
+        }
+    }
+
+    @Override
+    public void acceptDecl(AstDecl node) {
+        var value = this.rewrite(node.value);
+        var constant = !node.mutable && isConstant(value);
+        this.env.define(node.name, constant ? value : null);
+        var decl = new AstDecl(node.name, value, node.mutable, node.type);
+        if (constant)
+            this.propagated.add(decl);
+        this.result(node, decl);
+    }
+
+    @Override
+    public void acceptScope(AstScope node) {
+        this.env = this.env.beginScope();
+        var stmts = new ArrayList<AstNode>();
+        for (var stmt : node.stmts) {
+            var rewritten = this.rewrite(stmt);
+            if (!this.propagated.contains(rewritten))
+                stmts.add(rewritten);
+        }
+        var expr = this.rewrite(node.expr);
+        this.env = this.env.endScope();
+        this.result(node, new AstScope(stmts, expr));
+    }
+
+    @Override
+    public void acceptVar(AstVar node) {
+        var constant = this.env.lookup(node.name);
+        if (constant != null)
+            this.result(node, this.rewrite(constant));
+        else
+            super.acceptVar(node);
+    }
+
+    @Override
+    public void acceptIf(AstIf astIf) {
+        var conditionals = new ArrayList<AstIf.Conditional>();
+        AstNode fallthrough = null;
+        for (var cond : astIf.conditionals) {
+            var condition = this.rewrite(cond.condition);
+            if (condition instanceof AstBool b && !b.value)
+                continue;
+            var expression = this.rewrite(cond.expression);
+            if (condition instanceof AstBool) {
+                // Always taken, the remaining branches are never evaluated
+                fallthrough = expression;
+                break;
+            }
+            conditionals.add(new AstIf.Conditional(condition, expression));
+        }
+        if (fallthrough == null)
+            fallthrough = this.rewrite(astIf.fallthrough);
+
+        if (conditionals.isEmpty())
+            this.result(fallthrough);
+        else
+            this.result(astIf, new AstIf(conditionals, fallthrough));
+    }
+
+    @Override
+    public void acceptLoop(AstLoop loop) {
+        var condition = this.rewrite(loop.condition);
+        if (condition instanceof AstBool b && !b.value) {
+            var empty = new AstEmptyNode();
+            empty.annotateFrom(loop);
+            empty.annotate(TypeCheckStage.TYPE_KEY, ValueType.createVoid());
+            this.result(empty);
+            return;
+        }
+        this.result(loop, new AstLoop(condition, this.rewrite(loop.body)));
+    }
+
+    @Override
+    public void acceptFn(AstFn fn) {
+        this.env = this.env.beginScope();
+        for (var arg : fn.arguments)
+            this.env.define(arg.name, null);
+        this.env.define("this", null);
+        super.acceptFn(fn);
+        this.env = this.env.endScope();
+    }
+}
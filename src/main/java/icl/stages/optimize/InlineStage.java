@@ -0,0 +1,45 @@
+package icl.stages.optimize;
+
+import icl.ast.AstNode;
+import icl.pipeline.PipelineStage;
+
+/*-
+ * Inlines calls to small non-recursive functions whose target is known at
+ * compile time, see Inliner.
+ *
+ * The output is a new annotated tree that can be used in place of the input by
+ * the interpreters and the compiler. The arguments of an inlined call are bound
+ * to new variables named after the parameter with a '$' and a number, which can
+ * not clash with names in the source.
+ *
+ * Budgets:
+ *  size:  Functions with more nodes than this, after inlining their own calls,
+ *         are only inlined where they are defined, fn(){...}()
+ *  depth: Maximum nesting of inlined calls inside an inlined body, 0 disables
+ *         inlining
+ *
+ * Must run after the TypeCheckStage.
+ */
+public class InlineStage implements PipelineStage<AstNode, AstNode> {
+    public static final int DEFAULT_SIZE = 64;
+    public static final int DEFAULT_DEPTH = 4;
+
+    private final int size;
+    private final int depth;
+
+    public InlineStage() {
+        this(DEFAULT_SIZE, DEFAULT_DEPTH);
+    }
+
+    public InlineStage(int size, int depth) {
+        this.size = size;
+        this.depth = depth;
+    }
+
+    @Override
+    public AstNode process(AstNode input) {
+        if (this.depth <= 0)
+            return input;
+        return new Inliner(this.size, this.depth).rewrite(input);
+    }
+}
@@ -0,0 +1,302 @@
+package icl.stages.optimize;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import icl.Environment;
+import icl.ValueType;
+import icl.ast.AstAssign;
+import icl.ast.AstCall;
+import icl.ast.AstDecl;
+import icl.ast.AstField;
+import icl.ast.AstFn;
+import icl.ast.AstNode;
+import icl.ast.AstRecord;
+import icl.ast.AstScope;
+import icl.ast.AstVar;
+import icl.ast.BaseAstVisitor;
+import icl.stages.typecheck.TypeCheckStage;
+
+/**
+ * Replaces calls to small known functions with their bodies.
+ *
+ * A call is inlined when its target is a function literal, an immutable
+ * variable bound to one, or a field of an immutable variable bound to a record
+ * literal with function fields. Functions are rewritten before they are
+ * used, so the calls in their bodies are already inlined.
+ *
+ * `f(a, b)` becomes `{ let x$0 = a; let y$1 = b; <body of f> }` with the
+ * arguments renamed in the body. The free variables of the body must refer to
+ * the same declarations at the call site as where the function was defined.
+ */
+class Inliner extends AstRewriter {
+    // A declaration in scope, compared by identity
+    private static class Declaration {
+        final Function function;
+        final Map<String, Function> fields;
+
+        Declaration(Function function, Map<String, Function> fields) {
+            this.function = function;
+            this.fields = fields;
+        }
+    }
+
+    private static class Function {
+        final AstFn fn;
+        // Declaration each free variable refers to where the function is defined
+        final Map<String, Declaration> free;
+        final boolean recursive;
+        final int size;
+        // Deepest nesting of inlined calls in the body
+        final int depth;
+
+        Function(AstFn fn, Map<String, Declaration> free, boolean recursive, int size, int depth) {
+            this.fn = fn;
+            this.free = free;
+            this.recursive = recursive;
+            this.size = size;
+            this.depth = depth;
+        }
+    }
+
+    private final int max_size;
+    private final int max_depth;
+    private final Map<AstFn, Function> functions;
+    private final Map<AstRecord, Map<String, Function>> records;
+    private Environment<Declaration> env;
+    // Number of nodes in the function being rewritten
+    private int size;
+    private int depth;
+    private int names;
+
+    Inliner(int max_size, int max_depth) {
+        this.max_size = max_size;
+        this.max_depth = max_depth;
+        this.functions = new HashMap<>();
+        this.records = new HashMap<>();
+        this.env = new Environment<>();
+        this.size = 0;
+        this.depth = 0;
+        this.names = 0;
+    }
+
+    @Override
+    AstNode rewrite(AstNode node) {
+        this.size += 1;
+        return super.rewrite(node);
+    }
+
+    @Override
+    public void acceptDecl(AstDecl node) {
+        var value = this.rewrite(node.value);
+        Function function = null;
+        Map<String, Function> fields = null;
+        if (!node.mutable) {
+            if (value instanceof AstFn fn)
+                function = this.functions.get(fn);
+            var record = moduleRecord(value);
+            if (record != null)
+                fields = this.records.get(record);
+        }
+        this.env.define(node.name, new Declaration(function, fields));
+        this.result(node, new AstDecl(node.name, value, node.mutable, node.type));
+    }
+
+    @Override
+    public void acceptScope(AstScope node) {
+        this.env = this.env.beginScope();
+        super.acceptScope(node);
+        this.env = this.env.endScope();
+    }
+
+    @Override
+    public void acceptFn(AstFn fn) {
+        var size = this.size;
+        var depth = this.depth;
+        this.size = 0;
+        this.depth = 0;
+
+        this.env = this.env.beginScope();
+        for (var arg : fn.arguments)
+            this.env.define(arg.name, new Declaration(null, null));
+        this.env.define("this", new Declaration(null, null));
+        var body = this.rewrite(fn.body);
+        this.env = this.env.endScope();
+
+        var copy = new AstFn(fn.arguments, fn.ret, body);
+        var names = free(copy);
+        var free = new HashMap<String, Declaration>();
+        for (var name : names)
+            free.put(name, this.env.lookup(name));
+        this.functions.put(copy, new Function(copy, free, names.contains("this"), this.size, this.depth));
+        this.result(fn, copy);
+
+        this.size += size;
+        this.depth = depth;
+    }
+
+    @Override
+    public void acceptRecord(AstRecord record) {
+        var fields = new LinkedHashMap<String, AstNode>();
+        var functions = new HashMap<String, Function>();
+        for (var field : record.fields.entrySet()) {
+            var value = this.rewrite(field.getValue());
+            fields.put(field.getKey(), value);
+            var function = this.known(value);
+            if (function != null)
+                functions.put(field.getKey(), function);
+        }
+        var copy = new AstRecord(fields);
+        if (!functions.isEmpty())
+            this.records.put(copy, functions);
+        this.result(record, copy);
+    }
+
+    @Override
+    public void acceptCall(AstCall call) {
+        var target = this.rewrite(call.function);
+        var arguments = this.rewrite(call.arguments);
+        var function = this.known(target);
+        if (function == null || !this.inlinable(function, target instanceof AstFn)) {
+            this.result(call, new AstCall(target, arguments));
+            return;
+        }
+
+        var stmts = new ArrayList<AstNode>();
+        var renames = new HashMap<String, String>();
+        for (var i = 0; i < arguments.size(); ++i) {
+            var name = function.fn.arguments.get(i).name;
+            var fresh = name + "$" + this.names++;
+            renames.put(name, fresh);
+            var decl = new AstDecl(fresh, arguments.get(i), false, Optional.empty());
+            decl.annotateFrom(call);
+            decl.annotate(TypeCheckStage.TYPE_KEY, ValueType.createVoid());
+            stmts.add(decl);
+        }
+        var body = new Renamer(renames).rewrite(function.fn.body);
+        this.size += function.size;
+        this.depth = Math.max(this.depth, function.depth + 1);
+        if (stmts.isEmpty())
+            this.result(body);
+        else
+            this.result(call, new AstScope(stmts, body));
+    }
+
+    /**
+     * Finds the function a rewritten node evaluates to, if it is known.
+     */
+    private Function known(AstNode node) {
+        if (node instanceof AstFn fn)
+            return this.functions.get(fn);
+        if (node instanceof AstVar var) {
+            var declaration = this.env.lookup(var.name);
+            return declaration == null ? null : declaration.function;
+        }
+        if (node instanceof AstField field && field.value instanceof AstVar var) {
+            var declaration = this.env.lookup(var.name);
+            if (declaration == null || declaration.fields == null)
+                return null;
+            return declaration.fields.get(field.field);
+        }
+        return null;
+    }
+
+    /**
+     * @param literal If the function is called where it is defined, so inlining
+     *                it does not duplicate its body
+     */
+    private boolean inlinable(Function function, boolean literal) {
+        if (function.recursive || function.depth >= this.max_depth)
+            return false;
+        if (!literal && function.size > this.max_size)
+            return false;
+        for (var free : function.free.entrySet()) {
+            var declaration = free.getValue();
+            if (declaration == null || this.env.lookup(free.getKey()) != declaration)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the record literal a node evaluates to, such as the record at the
+     * end of a scope that defines a set of functions.
+     */
+    private static AstRecord moduleRecord(AstNode node) {
+        if (node instanceof AstRecord record)
+            return record;
+        if (node instanceof AstScope scope)
+            return moduleRecord(scope.expr);
+        return null;
+    }
+
+    /**
+     * @return The names used by a function that are not declared inside it,
+     *         including this if the function is recursive
+     */
+    private static Set<String> free(AstFn fn) {
+        var visitor = new FreeVariables();
+        visitor.acceptFnBody(fn);
+        return visitor.free;
+    }
+
+    private static class FreeVariables extends BaseAstVisitor {
+        final Set<String> free;
+        private Environment<Boolean> env;
+
+        FreeVariables() {
+            this.free = new HashSet<>();
+            this.env = new Environment<>();
+        }
+
+        void acceptFnBody(AstFn fn) {
+            this.env = this.env.beginScope();
+            for (var arg : fn.arguments)
+                this.env.define(arg.name, true);
+            fn.body.accept(this);
+            this.env = this.env.endScope();
+        }
+
+        private void reference(String name) {
+            if (this.env.lookup(name) == null)
+                this.free.add(name);
+        }
+
+        @Override
+        public void acceptDecl(AstDecl node) {
+            node.value.accept(this);
+            this.env.define(node.name, true);
+        }
+
+        @Override
+        public void acceptScope(AstScope node) {
+            this.env = this.env.beginScope();
+            super.acceptScope(node);
+            this.env = this.env.endScope();
+        }
+
+        @Override
+        public void acceptVar(AstVar node) {
+            this.reference(node.name);
+        }
+
+        @Override
+        public void acceptAssign(AstAssign assign) {
+            this.reference(assign.name);
+            super.acceptAssign(assign);
+        }
+
+        @Override
+        public void acceptFn(AstFn fn) {
+            this.env = this.env.beginScope();
+            this.env.define("this", true);
+            this.acceptFnBody(fn);
+            this.env = this.env.endScope();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package icl.stages.optimize;
+
+import icl.ast.AstNode;
+import icl.pipeline.PipelineStage;
+
+/*-
+ * Splits large scopes into functions so the methods the compiler generates stay
+ * below the size HotSpot compiles (HugeMethodLimit, 8000 bytes of bytecode) and
+ * far from the 64KB limit of a method, see Outliner.
+ *
+ * Only useful before the CompilerStage, where each function is a method. The
+ * body of every function and the program are counted separately.
+ *
+ * Budgets:
+ *  size: Maximum number of nodes in a scope, about three bytes of bytecode
+ *        each, 0 disables outlining
+ *
+ * Must run after the TypeCheckStage.
+ */
+public class OutlineStage implements PipelineStage<AstNode, AstNode> {
+    public static final int DEFAULT_SIZE = 2000;
+
+    private final int size;
+
+    public OutlineStage() {
+        this(DEFAULT_SIZE);
+    }
+
+    public OutlineStage(int size) {
+        this.size = size;
+    }
+
+    @Override
+    public AstNode process(AstNode input) {
+        if (this.size <= 0)
+            return input;
+        return new Outliner(this.size).rewrite(input);
+    }
+}
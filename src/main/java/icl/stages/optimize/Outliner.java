@@ -0,0 +1,156 @@
+package icl.stages.optimize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import icl.ValueType;
+import icl.ast.AstAssign;
+import icl.ast.AstCall;
+import icl.ast.AstDecl;
+import icl.ast.AstFn;
+import icl.ast.AstNode;
+import icl.ast.AstRecord;
+import icl.ast.AstScope;
+import icl.ast.AstTypeAlias;
+import icl.ast.AstVar;
+import icl.stages.typecheck.TypeCheckStage;
+
+/**
+ * Moves parts of scopes that are too large into functions that are called
+ * where they were, `s` becomes `fn() -> T { s }()`.
+ *
+ * Scopes are rewritten before the scopes that contain them. When a scope has
+ * more nodes than the limit, its largest statements are outlined until it fits,
+ * for a declaration its value is outlined. Nested functions are not counted,
+ * they are compiled to their own methods.
+ */
+class Outliner extends AstRewriter {
+    // Smaller parts are not worth a call
+    private static final int MIN_SIZE = 32;
+
+    private final int max_size;
+    // Number of nodes rewritten in the function being rewritten
+    private int size;
+    // Number of uses of this in the function being rewritten
+    private int recursion;
+
+    Outliner(int max_size) {
+        this.max_size = max_size;
+        this.size = 0;
+        this.recursion = 0;
+    }
+
+    @Override
+    AstNode rewrite(AstNode node) {
+        this.size += 1;
+        return super.rewrite(node);
+    }
+
+    @Override
+    public void acceptVar(AstVar node) {
+        if (node.name.equals("this"))
+            this.recursion += 1;
+        super.acceptVar(node);
+    }
+
+    @Override
+    public void acceptAssign(AstAssign assign) {
+        if (assign.name.equals("this"))
+            this.recursion += 1;
+        super.acceptAssign(assign);
+    }
+
+    @Override
+    public void acceptFn(AstFn fn) {
+        var size = this.size;
+        var recursion = this.recursion;
+        this.size = 0;
+        this.recursion = 0;
+        super.acceptFn(fn);
+        this.size = size;
+        this.recursion = recursion;
+    }
+
+    @Override
+    public void acceptScope(AstScope node) {
+        var start = this.size;
+        var parts = new ArrayList<AstNode>();
+        var sizes = new ArrayList<Integer>();
+        var movable = new ArrayList<Boolean>();
+        for (var stmt : node.stmts)
+            this.part(stmt, parts, sizes, movable);
+        this.part(node.expr, parts, sizes, movable);
+
+        var total = this.size - start;
+        while (total > this.max_size) {
+            var largest = -1;
+            for (var i = 0; i < parts.size(); ++i) {
+                if (movable.get(i) && sizes.get(i) >= MIN_SIZE
+                        && (largest == -1 || sizes.get(i) > sizes.get(largest)))
+                    largest = i;
+            }
+            if (largest == -1)
+                break;
+            parts.set(largest, this.outline(parts.get(largest)));
+            movable.set(largest, false);
+            // The outlined nodes are counted in the new function
+            var moved = sizes.get(largest) - 2;
+            total -= moved;
+            this.size -= moved;
+        }
+
+        var expr = parts.remove(parts.size() - 1);
+        this.result(node, new AstScope(parts, expr));
+    }
+
+    private void part(AstNode node, List<AstNode> parts, List<Integer> sizes, List<Boolean> movable) {
+        var size = this.size;
+        var recursion = this.recursion;
+        var rewritten = this.rewrite(node);
+        parts.add(rewritten);
+        sizes.add(this.size - size);
+        movable.add(this.recursion == recursion && outlinable(rewritten));
+    }
+
+    /**
+     * Checks if a node can be moved to a function without changing what the
+     * compiler knows about it.
+     */
+    private static boolean outlinable(AstNode node) {
+        if (node instanceof AstDecl decl)
+            return !(decl.value instanceof AstFn) && moduleRecord(decl.value) == null;
+        return !(node instanceof AstTypeAlias) && !(node instanceof AstFn) && moduleRecord(node) == null;
+    }
+
+    private AstNode outline(AstNode node) {
+        if (node instanceof AstDecl decl) {
+            var copy = new AstDecl(decl.name, this.call(decl.value), decl.mutable, decl.type);
+            copy.annotateFrom(decl);
+            return copy;
+        }
+        return this.call(node);
+    }
+
+    private AstNode call(AstNode node) {
+        var type = node.getAnnotation(TypeCheckStage.TYPE_KEY);
+        var fn = new AstFn(List.of(), Optional.of(type), node);
+        fn.annotateFrom(node);
+        fn.annotate(TypeCheckStage.TYPE_KEY, ValueType.createFunction(List.of(), type));
+        var call = new AstCall(fn, List.of());
+        call.annotateFrom(node);
+        return call;
+    }
+
+    /**
+     * Finds the record literal a node evaluates to, calls to its functions are
+     * direct only if the record is not built by a call.
+     */
+    private static AstRecord moduleRecord(AstNode node) {
+        if (node instanceof AstRecord record)
+            return record;
+        if (node instanceof AstScope scope)
+            return moduleRecord(scope.expr);
+        return null;
+    }
+}
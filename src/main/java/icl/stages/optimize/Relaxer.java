@@ -0,0 +1,174 @@
+package icl.stages.optimize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import icl.Builtin;
+import icl.ValueType;
+import icl.ast.AstBinOp;
+import icl.ast.AstBuiltin;
+import icl.ast.AstDecl;
+import icl.ast.AstNode;
+import icl.ast.AstNum;
+import icl.ast.AstScope;
+import icl.ast.AstVar;
+import icl.stages.typecheck.TypeCheckStage;
+
+/**
+ * Applies the rewrites of the fast math mode, that may change a result by a
+ * few ulps, a comparison of a value within rounding of its bound, or the result
+ * for -0, infinities and NaN.
+ *
+ * Nodes the engines should evaluate differently are annotated with
+ * FastMathStage.FAST_MATH_KEY.
+ */
+class Relaxer extends AstRewriter {
+    // Largest exponent replaced with multiplications
+    private static final int MAX_EXPONENT = 32;
+
+    private int names;
+
+    Relaxer() {
+        this.names = 0;
+    }
+
+    private static boolean isPure(AstNode node) {
+        return node instanceof AstNum || node instanceof AstVar;
+    }
+
+    private static boolean isNumber(AstNode node) {
+        return node.getAnnotation(TypeCheckStage.TYPE_KEY).isKind(ValueType.Kind.Number);
+    }
+
+    private static boolean isProduct(AstNode node) {
+        return node instanceof AstBinOp b && b.kind == AstBinOp.Kind.MUL;
+    }
+
+    @Override
+    public void acceptBinOp(AstBinOp node) {
+        var left = this.rewrite(node.left);
+        var right = this.rewrite(node.right);
+        if (!isNumber(node.left)) {
+            this.result(node, new AstBinOp(node.kind, left, right));
+            return;
+        }
+
+        switch (node.kind) {
+            case ADD, SUB -> {
+                // c + a * b keeps its operands in place, c is still evaluated first
+                var copy = this.annotate(node, new AstBinOp(node.kind, left, right));
+                if (isProduct(left) || (node.kind == AstBinOp.Kind.ADD && isProduct(right)))
+                    copy.annotate(FastMathStage.FAST_MATH_KEY, true);
+                this.result(copy);
+                return;
+            }
+            case DIV -> {
+                if (right instanceof AstNum n && n.value != 0 && Double.isFinite(n.value)) {
+                    var reciprocal = this.annotate(right, new AstNum(1 / n.value));
+                    this.result(node, new AstBinOp(AstBinOp.Kind.MUL, left, reciprocal));
+                    return;
+                }
+            }
+            case LT, LTE, GT, GTE -> {
+                // Compares the squares instead of taking the square root, which
+                // may differ when x is within rounding of c * c. sqrt(x) is NaN
+                // for a negative x, so for < and <= a pure x is also checked to
+                // not be negative and any other x is left alone.
+                if (left instanceof AstBuiltin b && b.builtin == Builtin.SQRT
+                        && right instanceof AstNum n && n.value >= 0) {
+                    var x = b.args.get(0);
+                    var square = this.annotate(right, new AstNum(n.value * n.value));
+                    if (node.kind == AstBinOp.Kind.GT || node.kind == AstBinOp.Kind.GTE) {
+                        this.result(node, new AstBinOp(node.kind, x, square));
+                        return;
+                    }
+                    if (isPure(x)) {
+                        var zero = this.annotate(right, new AstNum(0));
+                        var positive = this.annotate(node, new AstBinOp(AstBinOp.Kind.LTE, zero, x));
+                        var compare = this.annotate(node, new AstBinOp(node.kind, this.rewrite(x), square));
+                        this.result(node, new AstBinOp(AstBinOp.Kind.LAND, positive, compare));
+                        return;
+                    }
+                }
+            }
+            default -> {
+            }
+        }
+        this.result(node, new AstBinOp(node.kind, left, right));
+    }
+
+    @Override
+    public void acceptBuiltin(AstBuiltin builtin) {
+        var args = this.rewrite(builtin.args);
+        switch (builtin.builtin) {
+            case SIN, COS, TAN -> {
+                var copy = this.annotate(builtin, new AstBuiltin(builtin.builtin, args));
+                copy.annotate(FastMathStage.FAST_MATH_KEY, true);
+                this.result(copy);
+                return;
+            }
+            case POW -> {
+                var base = args.get(0);
+                if (args.get(1) instanceof AstNum n) {
+                    if (n.value == 0.5) {
+                        this.result(builtin, new AstBuiltin(Builtin.SQRT, List.of(base)));
+                        return;
+                    }
+                    var exponent = Math.abs(n.value);
+                    if (exponent == Math.rint(exponent) && exponent >= 2 && exponent <= MAX_EXPONENT) {
+                        this.result(this.power(builtin, base, (int) exponent, n.value < 0));
+                        return;
+                    }
+                }
+            }
+            default -> {
+            }
+        }
+        this.result(builtin, new AstBuiltin(builtin.builtin, args));
+    }
+
+    /**
+     * Computes x^n by repeated squaring,
+     * `{ let fpow$0 = x; let fpow$1 = fpow$0 * fpow$0; ... fpow$1 * fpow$0 }`.
+     */
+    private AstNode power(AstNode original, AstNode x, int n, boolean reciprocal) {
+        var stmts = new ArrayList<AstNode>();
+        var square = this.bind(original, stmts, x);
+        AstNode product = null;
+        while (true) {
+            if ((n & 1) != 0)
+                product = product == null
+                        ? this.annotate(original, new AstVar(square))
+                        : this.multiply(original, product, new AstVar(square));
+            n >>= 1;
+            if (n == 0)
+                break;
+            square = this.bind(original, stmts,
+                    this.multiply(original, new AstVar(square), new AstVar(square)));
+        }
+        if (reciprocal)
+            product = this.annotate(original, new AstBinOp(AstBinOp.Kind.DIV,
+                    this.annotate(original, new AstNum(1)), product));
+        return this.annotate(original, new AstScope(stmts, product));
+    }
+
+    private String bind(AstNode original, List<AstNode> stmts, AstNode value) {
+        var name = "fpow$" + this.names++;
+        var decl = this.annotate(original, new AstDecl(name, value, false, Optional.empty()));
+        decl.annotate(TypeCheckStage.TYPE_KEY, ValueType.createVoid());
+        stmts.add(decl);
+        return name;
+    }
+
+    private AstNode multiply(AstNode original, AstNode left, AstNode right) {
+        this.annotate(original, left);
+        this.annotate(original, right);
+        return this.annotate(original, new AstBinOp(AstBinOp.Kind.MUL, left, right));
+    }
+
+    private <T extends AstNode> T annotate(AstNode original, T copy) {
+        copy.annotateFrom(original);
+        return copy;
+    }
+}
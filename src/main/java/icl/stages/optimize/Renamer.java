@@ -0,0 +1,63 @@
+package icl.stages.optimize;
+
+import java.util.Map;
+
+import icl.Environment;
+import icl.ast.AstAssign;
+import icl.ast.AstDecl;
+import icl.ast.AstFn;
+import icl.ast.AstScope;
+import icl.ast.AstVar;
+
+/**
+ * Copies a tree renaming the free variables with the given names.
+ * Names declared inside the tree shadow the renamed ones as usual.
+ */
+class Renamer extends AstRewriter {
+    private Environment<String> env;
+
+    Renamer(Map<String, String> renames) {
+        this.env = new Environment<>();
+        for (var rename : renames.entrySet())
+            this.env.define(rename.getKey(), rename.getValue());
+        this.env = this.env.beginScope();
+    }
+
+    private String rename(String name) {
+        var renamed = this.env.lookup(name);
+        return renamed == null ? name : renamed;
+    }
+
+    @Override
+    public void acceptDecl(AstDecl node) {
+        super.acceptDecl(node);
+        this.env.define(node.name, node.name);
+    }
+
+    @Override
+    public void acceptScope(AstScope node) {
+        this.env = this.env.beginScope();
+        super.acceptScope(node);
+        this.env = this.env.endScope();
+    }
+
+    @Override
+    public void acceptVar(AstVar node) {
+        this.result(node, new AstVar(this.rename(node.name)));
+    }
+
+    @Override
+    public void acceptAssign(AstAssign assign) {
+        this.result(assign, new AstAssign(this.rename(assign.name), this.rewrite(assign.value)));
+    }
+
+    @Override
+    public void acceptFn(AstFn fn) {
+        this.env = this.env.beginScope();
+        for (var arg : fn.arguments)
+            this.env.define(arg.name, arg.name);
+        this.env.define("this", "this");
+        super.acceptFn(fn);
+        this.env = this.env.endScope();
+    }
+}
@@ -0,0 +1,188 @@
+package icl.stages.optimize;
+
+import java.util.List;
+import java.util.Optional;
+
+import icl.Builtin;
+import icl.ValueType;
+import icl.ast.AstBinOp;
+import icl.ast.AstBuiltin;
+import icl.ast.AstDecl;
+import icl.ast.AstNode;
+import icl.ast.AstNum;
+import icl.ast.AstScope;
+import icl.ast.AstUnaryOp;
+import icl.ast.AstVar;
+import icl.stages.typecheck.TypeCheckStage;
+
+/**
+ * Replaces arithmetic with cheaper arithmetic that gives exactly the same
+ * result for every operand, including -0, infinities and NaN.
+ */
+class Simplifier extends AstRewriter {
+    private int names;
+
+    Simplifier() {
+        this.names = 0;
+    }
+
+    private static boolean isNumber(AstNode node, double value) {
+        // Compares the bits so 0 and -0 are different numbers
+        return node instanceof AstNum n && Double.compare(n.value, value) == 0;
+    }
+
+    private static boolean isZero(AstNode node) {
+        return node instanceof AstNum n && n.value == 0;
+    }
+
+    /**
+     * Checks if a number is a power of two whose reciprocal is also a normal
+     * number, so dividing by it and multiplying by its reciprocal are the same.
+     */
+    private static boolean hasExactReciprocal(double value) {
+        return isPowerOfTwo(Math.abs(value)) && isPowerOfTwo(Math.abs(1 / value));
+    }
+
+    private static boolean isPowerOfTwo(double value) {
+        return value >= Double.MIN_NORMAL && !Double.isInfinite(value)
+                && value == Math.scalb(1.0, Math.getExponent(value));
+    }
+
+    /**
+     * Checks if evaluating a node more than once, or not at all, is the same as
+     * evaluating it once.
+     */
+    private static boolean isPure(AstNode node) {
+        return node instanceof AstNum || node instanceof AstVar;
+    }
+
+    @Override
+    public void acceptBinOp(AstBinOp node) {
+        var left = this.rewrite(node.left);
+        var right = this.rewrite(node.right);
+        if (!node.left.getAnnotation(TypeCheckStage.TYPE_KEY).isKind(ValueType.Kind.Number)) {
+            this.result(node, new AstBinOp(node.kind, left, right));
+            return;
+        }
+
+        switch (node.kind) {
+            case ADD -> {
+                // x + 0 is not x for x = -0
+                if (isNumber(right, -0.0)) {
+                    this.result(left);
+                    return;
+                }
+                if (isNumber(left, -0.0)) {
+                    this.result(right);
+                    return;
+                }
+            }
+            case SUB -> {
+                if (isNumber(right, 0.0)) {
+                    this.result(left);
+                    return;
+                }
+            }
+            case MUL -> {
+                if (isNumber(right, 1)) {
+                    this.result(left);
+                    return;
+                }
+                if (isNumber(left, 1)) {
+                    this.result(right);
+                    return;
+                }
+                if (isNumber(right, -1)) {
+                    this.result(node, new AstUnaryOp(AstUnaryOp.Kind.NEG, left));
+                    return;
+                }
+                if (isNumber(left, -1)) {
+                    this.result(node, new AstUnaryOp(AstUnaryOp.Kind.NEG, right));
+                    return;
+                }
+            }
+            case DIV -> {
+                if (isNumber(right, 1)) {
+                    this.result(left);
+                    return;
+                }
+                if (right instanceof AstNum n && hasExactReciprocal(n.value)) {
+                    var reciprocal = new AstNum(1 / n.value);
+                    reciprocal.annotateFrom(right);
+                    this.result(node, new AstBinOp(AstBinOp.Kind.MUL, left, reciprocal));
+                    return;
+                }
+            }
+            case CMP -> {
+                // The square root of x is zero only if x is zero
+                if (isZero(right) && left instanceof AstBuiltin b && b.builtin == Builtin.SQRT) {
+                    this.result(node, new AstBinOp(AstBinOp.Kind.CMP, b.args.get(0), right));
+                    return;
+                }
+                if (isZero(left) && right instanceof AstBuiltin b && b.builtin == Builtin.SQRT) {
+                    this.result(node, new AstBinOp(AstBinOp.Kind.CMP, left, b.args.get(0)));
+                    return;
+                }
+            }
+            default -> {
+            }
+        }
+        this.result(node, new AstBinOp(node.kind, left, right));
+    }
+
+    @Override
+    public void acceptUnaryOp(AstUnaryOp node) {
+        var expr = this.rewrite(node.expr);
+        if (expr instanceof AstUnaryOp inner && inner.kind == node.kind
+                && (node.kind == AstUnaryOp.Kind.NEG || node.kind == AstUnaryOp.Kind.LNOT)) {
+            this.result(inner.expr);
+            return;
+        }
+        this.result(node, new AstUnaryOp(node.kind, expr));
+    }
+
+    @Override
+    public void acceptBuiltin(AstBuiltin builtin) {
+        var args = this.rewrite(builtin.args);
+        if (builtin.builtin == Builtin.POW) {
+            var base = args.get(0);
+            var exponent = args.get(1);
+            // pow(x, 0) is 1 even for NaN
+            if (isZero(exponent) && isPure(base)) {
+                this.result(builtin, new AstNum(1));
+                return;
+            }
+            if (isNumber(exponent, 1)) {
+                this.result(base);
+                return;
+            }
+            // Both are the correctly rounded square of x
+            if (isNumber(exponent, 2)) {
+                this.result(this.square(builtin, base));
+                return;
+            }
+        }
+        this.result(builtin, new AstBuiltin(builtin.builtin, args));
+    }
+
+    /**
+     * @return x * x, with x bound to a new variable if it is not pure
+     */
+    private AstNode square(AstNode original, AstNode x) {
+        if (isPure(x))
+            return this.annotate(original, new AstBinOp(AstBinOp.Kind.MUL, x, this.rewrite(x)));
+
+        var name = "pow$" + this.names++;
+        var decl = this.annotate(original, new AstDecl(name, x, false, Optional.empty()));
+        decl.annotate(TypeCheckStage.TYPE_KEY, ValueType.createVoid());
+        var left = this.annotate(original, new AstVar(name));
+        var right = this.annotate(original, new AstVar(name));
+        var product = this.annotate(original, new AstBinOp(AstBinOp.Kind.MUL, left, right));
+        return this.annotate(original, new AstScope(List.of(decl), product));
+    }
+
+    private <T extends AstNode> T annotate(AstNode original, T copy) {
+        copy.annotateFrom(original);
+        return copy;
+    }
+}
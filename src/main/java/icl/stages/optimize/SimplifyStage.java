@@ -0,0 +1,29 @@
+package icl.stages.optimize;
+
+import icl.ast.AstNode;
+import icl.pipeline.PipelineStage;
+
+/*-
+ * Algebraic simplification and strength reduction, see Simplifier.
+ * Only rewrites that are exact for every operand are applied:
+ *
+ *  x * 1, 1 * x, x / 1, x - 0, x + -0  ->  x
+ *  x * -1, -1 * x                      ->  -x
+ *  x / c                               ->  x * (1 / c), c a power of two
+ *  -(-x), ~(~b)                        ->  x, b
+ *  $sqrt(x) == 0                       ->  x == 0
+ *  $pow(x, 0)                          ->  1, x a variable or a literal
+ *  $pow(x, 1)                          ->  x
+ *  $pow(x, 2)                          ->  x * x
+ *
+ * x + 0 is not simplified, it is 0 and not -0 when x is -0.
+ *
+ * Must run after the TypeCheckStage.
+ */
+public class SimplifyStage implements PipelineStage<AstNode, AstNode> {
+
+    @Override
+    public AstNode process(AstNode input) {
+        return new Simplifier().rewrite(input);
+    }
+}
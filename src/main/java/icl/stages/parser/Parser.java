@@ -3,6 +3,7 @@ package icl.stages.parser;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Optional;
 
@@ -151,7 +152,8 @@ public class Parser {
 	}
 
 	static AstNode astRecord(Span span, List<RecordField> fields) {
-		var map = new HashMap<String, AstNode>();
+		// Keeps the fields in source order, the order they are evaluated in
+		var map = new LinkedHashMap<String, AstNode>();
 		for (var field : fields) {
 			if (map.containsKey(field.name))
 				throw new ParserException("Duplicate field name: " + field.name + " at " + span);
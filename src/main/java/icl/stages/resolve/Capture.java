@@ -0,0 +1,16 @@
+package icl.stages.resolve;
+
+/**
+ * A free variable of a function, copied into the closure when the function
+ * value is created.
+ */
+public class Capture {
+    public final String name;
+    // Slot of the variable where the function value is created
+    public final Slot slot;
+
+    public Capture(String name, Slot slot) {
+        this.name = name;
+        this.slot = slot;
+    }
+}
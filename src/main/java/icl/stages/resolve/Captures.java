@@ -0,0 +1,154 @@
+package icl.stages.resolve;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import icl.Environment;
+import icl.ValueType;
+import icl.ast.AstAssign;
+import icl.ast.AstDecl;
+import icl.ast.AstFn;
+import icl.ast.AstNode;
+import icl.ast.AstScope;
+import icl.ast.AstVar;
+import icl.ast.BaseAstVisitor;
+import icl.stages.typecheck.TypeCheckStage;
+
+/**
+ * Finds the free variables of every function.
+ *
+ * Closures are flat, a function value holds a copy of each of its free
+ * variables instead of the environment it was created in. A declaration that is
+ * captured by a nested function and also assigned is boxed, so the copies
+ * share it.
+ * Names that are not declared inside the analyzed node are free variables of
+ * the outermost functions.
+ */
+public class Captures {
+	private static class Declaration {
+		// null for this
+		final AstDecl decl;
+		final int level;
+
+		Declaration(AstDecl decl, int level) {
+			this.decl = decl;
+			this.level = level;
+		}
+	}
+
+	private static class Function {
+		final int level;
+		final Set<String> free;
+
+		Function(int level) {
+			this.level = level;
+			this.free = new LinkedHashSet<>();
+		}
+	}
+
+	private final Set<AstDecl> captured;
+	private final Set<AstDecl> assigned;
+	private final Map<AstFn, List<String>> free;
+
+	public Captures() {
+		this.captured = new HashSet<>();
+		this.assigned = new HashSet<>();
+		this.free = new HashMap<>();
+	}
+
+	public void analyze(AstNode node) {
+		node.accept(new Visitor());
+	}
+
+	/**
+	 * @return The free variables of the function, in the order they are stored
+	 *         in its closure
+	 */
+	public List<String> free(AstFn fn) {
+		return this.free.getOrDefault(fn, List.of());
+	}
+
+	/**
+	 * Checks if a declaration must be stored in a box shared with the closures
+	 * that capture it.
+	 * References are never boxed, assigning to them stores the value in the
+	 * reference itself.
+	 */
+	public boolean isBoxed(AstDecl decl) {
+		return this.captured.contains(decl)
+				&& this.assigned.contains(decl)
+				&& !decl.value.getAnnotation(TypeCheckStage.TYPE_KEY).isKind(ValueType.Kind.Reference);
+	}
+
+	private class Visitor extends BaseAstVisitor {
+		private final List<Function> functions;
+		private Environment<Declaration> env;
+		private int level;
+
+		Visitor() {
+			this.functions = new ArrayList<>();
+			this.env = new Environment<>();
+			this.level = 0;
+		}
+
+		private void reference(String name, boolean assign) {
+			var declaration = this.env.lookup(name);
+			var level = declaration == null ? 0 : declaration.level;
+			if (declaration != null && declaration.decl != null) {
+				if (declaration.level != this.level)
+					Captures.this.captured.add(declaration.decl);
+				if (assign)
+					Captures.this.assigned.add(declaration.decl);
+			}
+			for (var i = this.functions.size() - 1; i >= 0 && this.functions.get(i).level > level; --i)
+				this.functions.get(i).free.add(name);
+		}
+
+		@Override
+		public void acceptDecl(AstDecl node) {
+			node.value.accept(this);
+			this.env.define(node.name, new Declaration(node, this.level));
+		}
+
+		@Override
+		public void acceptScope(AstScope node) {
+			this.env = this.env.beginScope();
+			super.acceptScope(node);
+			this.env = this.env.endScope();
+		}
+
+		@Override
+		public void acceptVar(AstVar node) {
+			this.reference(node.name, false);
+		}
+
+		@Override
+		public void acceptAssign(AstAssign assign) {
+			this.reference(assign.name, true);
+			super.acceptAssign(assign);
+		}
+
+		@Override
+		public void acceptFn(AstFn fn) {
+			this.env = this.env.beginScope();
+			this.level += 1;
+			for (var arg : fn.arguments)
+				this.env.define(arg.name, new Declaration(null, this.level));
+			this.env.define("this", new Declaration(null, this.level));
+
+			var function = new Function(this.level);
+			this.functions.add(function);
+			fn.body.accept(this);
+			this.functions.remove(this.functions.size() - 1);
+			Captures.this.free.put(fn, List.copyOf(function.free));
+
+			this.level -= 1;
+			this.env = this.env.endScope();
+		}
+	}
+}
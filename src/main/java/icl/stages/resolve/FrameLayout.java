@@ -0,0 +1,33 @@
+package icl.stages.resolve;
+
+/**
+ * Compile time view of a runtime frame.
+ * Every function call gets a frame whose parent is the closure of the function.
+ */
+class FrameLayout {
+    private final FrameLayout parent;
+    private int size;
+
+    FrameLayout(FrameLayout parent) {
+        this.parent = parent;
+        this.size = 0;
+    }
+
+    int allocate() {
+        return this.size++;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    int depthOf(FrameLayout frame) {
+        var depth = 0;
+        var current = this;
+        while (current != frame) {
+            current = current.parent;
+            depth += 1;
+        }
+        return depth;
+    }
+}
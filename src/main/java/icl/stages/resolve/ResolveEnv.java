@@ -0,0 +1,56 @@
+package icl.stages.resolve;
+
+import icl.Environment;
+
+class ResolveEnv {
+    static class Binding {
+        final FrameLayout frame;
+        final int index;
+        final boolean boxed;
+
+        Binding(FrameLayout frame, int index, boolean boxed) {
+            this.frame = frame;
+            this.index = index;
+            this.boxed = boxed;
+        }
+    }
+
+    final Environment<Binding> names;
+    final FrameLayout frame;
+    final Captures captures;
+
+    ResolveEnv(Environment<Binding> names, FrameLayout frame, Captures captures) {
+        this.names = names;
+        this.frame = frame;
+        this.captures = captures;
+    }
+
+    ResolveEnv beginScope() {
+        return new ResolveEnv(this.names.beginScope(), this.frame, this.captures);
+    }
+
+    ResolveEnv beginFrameScope() {
+        return new ResolveEnv(this.names.beginScope(), new FrameLayout(this.frame), this.captures);
+    }
+
+    /**
+     * Begins the closure of a function, only the variables defined in it are
+     * visible.
+     */
+    ResolveEnv beginClosure() {
+        return new ResolveEnv(new Environment<>(), new FrameLayout(null), this.captures);
+    }
+
+    int define(String name, boolean boxed) {
+        var index = this.frame.allocate();
+        this.names.define(name, new Binding(this.frame, index, boxed));
+        return index;
+    }
+
+    Slot lookup(String name) {
+        var binding = this.names.lookup(name);
+        if (binding == null)
+            throw new IllegalStateException("Failed to resolve variable '" + name + "'");
+        return new Slot(this.frame.depthOf(binding.frame), binding.index, binding.boxed);
+    }
+}
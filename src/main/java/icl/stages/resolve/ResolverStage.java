@@ -0,0 +1,64 @@
+package icl.stages.resolve;
+
+import java.util.List;
+
+import icl.Environment;
+import icl.ast.AnnotationKey;
+import icl.ast.AstNode;
+import icl.pipeline.PipelineStage;
+
+/*-
+ * Resolves every variable to a slot in a runtime frame so the interpreter does
+ * not have to lookup variables by name.
+ *
+ * Frames:
+ *  The program and every function call get a frame.
+ *  A function frame is laid out as: this, arguments..., locals...
+ *  Scopes share the frame of the enclosing function.
+ *  The parent of a function frame is the closure of the function value, a frame
+ *  with a copy of each free variable of the function, so captured variables are
+ *  always at depth 1. Captured variables that are assigned are boxed in a
+ *  reference when declared, the closures copy the reference.
+ *
+ * Must run after the TypeCheckStage, it assumes all names are valid and uses
+ * the record types.
+ * ----------------
+ *
+ * Annotations:
+ *  AstVar, AstAssign, AstDecl:
+ *      - SLOT_KEY: The frame depth and index of the variable, and if it is boxed.
+ *  AstFn:
+ *      - FRAME_KEY: The size of the frame allocated for every call.
+ *      - CAPTURES_KEY: The free variables to copy into the closure, in order.
+ *  AstField:
+ *      - FIELD_KEY: The index of the field in the record layout. Record types
+ *        must match exactly so the index is the same for every record that
+ *        reaches this node.
+ *  Root node:
+ *      - ROOT_FRAME_KEY: The size of the program frame.
+ */
+public class ResolverStage implements PipelineStage<AstNode, AstNode> {
+    public static final AnnotationKey<Slot> SLOT_KEY = new AnnotationKey<>("slot");
+    public static final AnnotationKey<Integer> FRAME_KEY = new AnnotationKey<>("frame");
+    public static final AnnotationKey<List<Capture>> CAPTURES_KEY = new AnnotationKey<>("captures");
+    public static final AnnotationKey<Integer> FIELD_KEY = new AnnotationKey<>("field");
+    public static final AnnotationKey<Integer> ROOT_FRAME_KEY = new AnnotationKey<>("root_frame");
+
+    @Override
+    public AstNode process(AstNode input) {
+        var captures = new Captures();
+        captures.analyze(input);
+
+        var frame = new FrameLayout(null);
+        var env = new ResolveEnv(new Environment<>(), frame, captures);
+        var output = resolve(env, input);
+        output.annotate(ROOT_FRAME_KEY, frame.size());
+        return output;
+    }
+
+    static AstNode resolve(ResolveEnv env, AstNode node) {
+        var visitor = new Visitor(env);
+        node.accept(visitor);
+        return node;
+    }
+}
@@ -0,0 +1,25 @@
+package icl.stages.resolve;
+
+public class Slot {
+    // Number of frames to walk up from the current frame
+    public final int depth;
+    // Index of the variable in the frame
+    public final int index;
+    // The slot holds a reference shared with closures instead of the value
+    public final boolean boxed;
+
+    public Slot(int depth, int index) {
+        this(depth, index, false);
+    }
+
+    public Slot(int depth, int index, boolean boxed) {
+        this.depth = depth;
+        this.index = index;
+        this.boxed = boxed;
+    }
+
+    @Override
+    public String toString() {
+        return "Slot [depth=" + depth + ", index=" + index + ", boxed=" + boxed + "]";
+    }
+}
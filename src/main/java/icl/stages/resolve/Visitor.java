@@ -0,0 +1,165 @@
+package icl.stages.resolve;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import icl.ast.AstAssign;
+import icl.ast.AstBinOp;
+import icl.ast.AstBool;
+import icl.ast.AstBuiltin;
+import icl.ast.AstCall;
+import icl.ast.AstDecl;
+import icl.ast.AstEmptyNode;
+import icl.ast.AstField;
+import icl.ast.AstFn;
+import icl.ast.AstIf;
+import icl.ast.AstLoop;
+import icl.ast.AstNew;
+import icl.ast.AstNode;
+import icl.ast.AstNum;
+import icl.ast.AstPrint;
+import icl.ast.AstRecord;
+import icl.ast.AstScope;
+import icl.ast.AstStr;
+import icl.ast.AstTypeAlias;
+import icl.ast.AstUnaryOp;
+import icl.ast.AstVar;
+import icl.ast.AstVisitor;
+import icl.stages.typecheck.TypeCheckStage;
+
+class Visitor implements AstVisitor {
+	private final ResolveEnv env;
+
+	public Visitor(ResolveEnv env) {
+		this.env = env;
+	}
+
+	@Override
+	public void acceptNum(AstNum node) {
+	}
+
+	@Override
+	public void acceptBool(AstBool node) {
+	}
+
+	@Override
+	public void acceptStr(AstStr node) {
+	}
+
+	@Override
+	public void acceptBinOp(AstBinOp node) {
+		ResolverStage.resolve(this.env, node.left);
+		ResolverStage.resolve(this.env, node.right);
+	}
+
+	@Override
+	public void acceptUnaryOp(AstUnaryOp node) {
+		ResolverStage.resolve(this.env, node.expr);
+	}
+
+	@Override
+	public void acceptDecl(AstDecl node) {
+		ResolverStage.resolve(this.env, node.value);
+		var boxed = this.env.captures.isBoxed(node);
+		var index = this.env.define(node.name, boxed);
+		node.annotate(ResolverStage.SLOT_KEY, new Slot(0, index, boxed));
+	}
+
+	@Override
+	public void acceptScope(AstScope node) {
+		var env = this.env.beginScope();
+		for (var stmt : node.stmts)
+			ResolverStage.resolve(env, stmt);
+		ResolverStage.resolve(env, node.expr);
+	}
+
+	@Override
+	public void acceptEmptyNode(AstEmptyNode node) {
+	}
+
+	@Override
+	public void acceptVar(AstVar node) {
+		node.annotate(ResolverStage.SLOT_KEY, this.env.lookup(node.name));
+	}
+
+	@Override
+	public void acceptCall(AstCall call) {
+		ResolverStage.resolve(this.env, call.function);
+		for (var arg : call.arguments)
+			ResolverStage.resolve(this.env, arg);
+	}
+
+	@Override
+	public void acceptIf(AstIf astIf) {
+		for (var cond : astIf.conditionals) {
+			ResolverStage.resolve(this.env, cond.condition);
+			ResolverStage.resolve(this.env, cond.expression);
+		}
+		ResolverStage.resolve(this.env, astIf.fallthrough);
+	}
+
+	@Override
+	public void acceptLoop(AstLoop loop) {
+		ResolverStage.resolve(this.env, loop.condition);
+		ResolverStage.resolve(this.env, loop.body);
+	}
+
+	@Override
+	public void acceptAssign(AstAssign assign) {
+		ResolverStage.resolve(this.env, assign.value);
+		assign.annotate(ResolverStage.SLOT_KEY, this.env.lookup(assign.name));
+	}
+
+	@Override
+	public void acceptPrint(AstPrint print) {
+		ResolverStage.resolve(this.env, print.expr);
+	}
+
+	@Override
+	public void acceptNew(AstNew anew) {
+		ResolverStage.resolve(this.env, anew.value);
+	}
+
+	@Override
+	public void acceptFn(AstFn fn) {
+		var captures = new ArrayList<Capture>();
+		var closure = this.env.beginClosure();
+		for (var name : this.env.captures.free(fn)) {
+			var slot = this.env.lookup(name);
+			captures.add(new Capture(name, slot));
+			closure.define(name, slot.boxed);
+		}
+
+		// Frame layout: this, arguments..., locals...
+		var env = closure.beginFrameScope();
+		env.define("this", false);
+		for (var arg : fn.arguments)
+			env.define(arg.name, false);
+		ResolverStage.resolve(env.beginScope(), fn.body);
+		fn.annotate(ResolverStage.FRAME_KEY, env.frame.size());
+		fn.annotate(ResolverStage.CAPTURES_KEY, List.copyOf(captures));
+	}
+
+	@Override
+	public void acceptRecord(AstRecord record) {
+		for (var field : record.fields.values())
+			ResolverStage.resolve(this.env, field);
+	}
+
+	@Override
+	public void acceptField(AstField field) {
+		ResolverStage.resolve(this.env, field.value);
+		var record = field.value.getAnnotation(TypeCheckStage.TYPE_KEY).getRecord();
+		field.annotate(ResolverStage.FIELD_KEY, record.indexOf(field.field));
+	}
+
+	@Override
+	public void acceptTypeAlias(AstTypeAlias typeAlias) {
+	}
+
+	@Override
+	public void acceptBuiltin(AstBuiltin builtin) {
+		for (var arg : builtin.args)
+			ResolverStage.resolve(this.env, arg);
+	}
+}
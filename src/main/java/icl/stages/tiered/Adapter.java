@@ -0,0 +1,29 @@
+package icl.stages.tiered;
+
+import icl.ValueType;
+import icl.stages.interpretor.value.FnValue;
+
+/**
+ * Base class of the generated classes that let compiled code call an
+ * interpreted function. Subclasses implement the interface of the function
+ * type, convert the arguments and evaluate the target.
+ */
+public abstract class Adapter {
+    public FnValue target;
+    public Marshal marshal;
+    // Argument types followed by the return type
+    public ValueType[] types;
+    private Object compiled;
+
+    /**
+     * The target can be compiled after the adapter was created, from then on
+     * subclasses call the compiled function directly.
+     *
+     * @return The compiled target, or null if it is still interpreted
+     */
+    public Object compiled() {
+        if (this.compiled == null && this.target.getCode() instanceof TieredCode tiered)
+            this.compiled = tiered.compiled();
+        return this.compiled;
+    }
+}
@@ -0,0 +1,17 @@
+package icl.stages.tiered;
+
+import icl.ValueType;
+import icl.stages.interpretor.Code;
+
+/**
+ * Base class of the generated classes that let the interpreter call a compiled
+ * function. Subclasses read the arguments from the frame, convert them and
+ * call the function interface method of the target.
+ */
+public abstract class Bridge implements Code {
+    // The compiled function, implements the interface of its function type
+    public Object target;
+    public Marshal marshal;
+    // Argument types followed by the return type
+    public ValueType[] types;
+}
@@ -0,0 +1,20 @@
+package icl.stages.tiered;
+
+import icl.ValueType;
+import icl.stages.resolve.Slot;
+
+/**
+ * A variable referenced by a function but declared outside of it.
+ */
+class FreeVariable {
+    final String name;
+    final ValueType type;
+    // Slot in the closure of the function value
+    final Slot slot;
+
+    FreeVariable(String name, ValueType type, Slot slot) {
+        this.name = name;
+        this.type = type;
+        this.slot = slot;
+    }
+}
@@ -0,0 +1,285 @@
+package icl.stages.tiered;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import icl.ValueType;
+import icl.stages.jvm.ClassFileWriter;
+import icl.stages.jvm.CompiledClass;
+import icl.stages.jvm.Names;
+
+/**
+ * Generates the bridge and adapter classes for a function type.
+ */
+class Generator {
+    private static final String BRIDGE = "icl/stages/tiered/Bridge";
+    private static final String ADAPTER = "icl/stages/tiered/Adapter";
+    private static final String MARSHAL = "icl/stages/tiered/Marshal";
+    private static final String FRAME = "icl/stages/interpretor/Frame";
+    private static final String FN_VALUE = "icl/stages/interpretor/value/FnValue";
+    private static final String VALUE_DESCRIPTOR = "Licl/stages/interpretor/value/Value;";
+    private static final String SLOTS_DESCRIPTOR = "[" + VALUE_DESCRIPTOR;
+    private static final String TYPES_DESCRIPTOR = "[Licl/ValueType;";
+    private static final String TO_JAVA_DESCRIPTOR = "(" + VALUE_DESCRIPTOR + "Licl/ValueType;)Ljava/lang/Object;";
+    private static final String TO_VALUE_DESCRIPTOR = "(Ljava/lang/Object;Licl/ValueType;)" + VALUE_DESCRIPTOR;
+
+    private Generator() {
+    }
+
+    /**
+     * Generates a subclass of Bridge that calls a compiled function of the
+     * given type with the arguments in the frame.
+     */
+    static CompiledClass bridge(String typename, ValueType.Function type) {
+        var interface_typename = Names.typename(type);
+
+        var cwriter = new ClassFileWriter();
+        cwriter.visit(ClassFileWriter.VERSION, Opcodes.ACC_PUBLIC, typename, null, BRIDGE, new String[] {});
+        generateInitMethod(cwriter, BRIDGE);
+
+        var method = cwriter.visitMethod(Opcodes.ACC_PUBLIC, "execute",
+                "(L" + FRAME + ";)" + VALUE_DESCRIPTOR, null, null);
+        method.visitCode();
+
+        method.visitVarInsn(Opcodes.ALOAD, 0);
+        method.visitFieldInsn(Opcodes.GETFIELD, BRIDGE, "target", "Ljava/lang/Object;");
+        method.visitTypeInsn(Opcodes.CHECKCAST, interface_typename);
+
+        for (var i = 0; i < type.args.size(); ++i) {
+            var arg_type = type.args.get(i);
+            if (!isPrimitive(arg_type)) {
+                method.visitVarInsn(Opcodes.ALOAD, 0);
+                method.visitFieldInsn(Opcodes.GETFIELD, BRIDGE, "marshal", "L" + MARSHAL + ";");
+            }
+
+            // Argument i is in slot i + 1, slot 0 is the function itself
+            method.visitVarInsn(Opcodes.ALOAD, 1);
+            method.visitFieldInsn(Opcodes.GETFIELD, FRAME, "slots", SLOTS_DESCRIPTOR);
+            method.visitIntInsn(Opcodes.SIPUSH, i + 1);
+            method.visitInsn(Opcodes.AALOAD);
+
+            if (isPrimitive(arg_type)) {
+                generateToJava(method, arg_type);
+            } else {
+                generateType(method, BRIDGE, i);
+                method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, MARSHAL, "toJava", TO_JAVA_DESCRIPTOR, false);
+                method.visitTypeInsn(Opcodes.CHECKCAST, Names.typename(arg_type));
+            }
+        }
+
+        method.visitMethodInsn(Opcodes.INVOKEINTERFACE, interface_typename, "call", Names.callDescriptor(type),
+                true);
+
+        if (isPrimitive(type.ret) || type.ret.isKind(ValueType.Kind.Void)) {
+            generateToValue(method, type.ret);
+        } else {
+            method.visitVarInsn(Opcodes.ASTORE, 2);
+            method.visitVarInsn(Opcodes.ALOAD, 0);
+            method.visitFieldInsn(Opcodes.GETFIELD, BRIDGE, "marshal", "L" + MARSHAL + ";");
+            method.visitVarInsn(Opcodes.ALOAD, 2);
+            generateType(method, BRIDGE, type.args.size());
+            method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, MARSHAL, "toValue", TO_VALUE_DESCRIPTOR, false);
+        }
+        method.visitInsn(Opcodes.ARETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+        cwriter.visitEnd();
+
+        return new CompiledClass(typename, cwriter.toByteArray());
+    }
+
+    /**
+     * Generates a subclass of Adapter that implements the interface of the
+     * given function type by evaluating an interpreted function.
+     */
+    static CompiledClass adapter(String typename, ValueType.Function type) {
+        var interface_typename = Names.typename(type);
+
+        var cwriter = new ClassFileWriter();
+        cwriter.visit(ClassFileWriter.VERSION, Opcodes.ACC_PUBLIC, typename, null, ADAPTER, new String[] {
+                interface_typename
+        });
+        generateInitMethod(cwriter, ADAPTER);
+
+        var method = cwriter.visitMethod(Opcodes.ACC_PUBLIC, "call", Names.callDescriptor(type), null, null);
+        method.visitCode();
+
+        // Registers after the arguments
+        var frame_register = 1;
+        for (var arg_type : type.args)
+            frame_register += arg_type.isKind(ValueType.Kind.Number) ? 2 : 1;
+        var scratch_register = frame_register + 1;
+
+        // Call the target directly once it is compiled
+        var interpreted = new Label();
+        method.visitVarInsn(Opcodes.ALOAD, 0);
+        method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, ADAPTER, "compiled", "()Ljava/lang/Object;", false);
+        method.visitInsn(Opcodes.DUP);
+        method.visitJumpInsn(Opcodes.IFNULL, interpreted);
+        method.visitTypeInsn(Opcodes.CHECKCAST, interface_typename);
+        var arg_register = 1;
+        for (var arg_type : type.args) {
+            switch (arg_type.getKind()) {
+                case Number -> {
+                    method.visitVarInsn(Opcodes.DLOAD, arg_register);
+                    arg_register += 2;
+                }
+                case Boolean -> {
+                    method.visitVarInsn(Opcodes.ILOAD, arg_register);
+                    arg_register += 1;
+                }
+                default -> {
+                    method.visitVarInsn(Opcodes.ALOAD, arg_register);
+                    arg_register += 1;
+                }
+            }
+        }
+        method.visitMethodInsn(Opcodes.INVOKEINTERFACE, interface_typename, "call", Names.callDescriptor(type),
+                true);
+        method.visitInsn(returnOpcode(type.ret));
+        method.visitLabel(interpreted);
+        method.visitInsn(Opcodes.POP);
+
+        method.visitVarInsn(Opcodes.ALOAD, 0);
+        method.visitFieldInsn(Opcodes.GETFIELD, ADAPTER, "target", "L" + FN_VALUE + ";");
+        method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FN_VALUE, "createFrame", "()L" + FRAME + ";", false);
+        method.visitVarInsn(Opcodes.ASTORE, frame_register);
+
+        var register = 1;
+        for (var i = 0; i < type.args.size(); ++i) {
+            var arg_type = type.args.get(i);
+            method.visitVarInsn(Opcodes.ALOAD, frame_register);
+            method.visitFieldInsn(Opcodes.GETFIELD, FRAME, "slots", SLOTS_DESCRIPTOR);
+            method.visitIntInsn(Opcodes.SIPUSH, i + 1);
+
+            switch (arg_type.getKind()) {
+                case Number -> {
+                    method.visitVarInsn(Opcodes.DLOAD, register);
+                    generateToValue(method, arg_type);
+                    register += 2;
+                }
+                case Boolean -> {
+                    method.visitVarInsn(Opcodes.ILOAD, register);
+                    generateToValue(method, arg_type);
+                    register += 1;
+                }
+                case String -> {
+                    method.visitVarInsn(Opcodes.ALOAD, register);
+                    generateToValue(method, arg_type);
+                    register += 1;
+                }
+                default -> {
+                    method.visitVarInsn(Opcodes.ALOAD, 0);
+                    method.visitFieldInsn(Opcodes.GETFIELD, ADAPTER, "marshal", "L" + MARSHAL + ";");
+                    method.visitVarInsn(Opcodes.ALOAD, register);
+                    generateType(method, ADAPTER, i);
+                    method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, MARSHAL, "toValue", TO_VALUE_DESCRIPTOR, false);
+                    register += 1;
+                }
+            }
+            method.visitInsn(Opcodes.AASTORE);
+        }
+
+        method.visitVarInsn(Opcodes.ALOAD, 0);
+        method.visitFieldInsn(Opcodes.GETFIELD, ADAPTER, "target", "L" + FN_VALUE + ";");
+        method.visitVarInsn(Opcodes.ALOAD, frame_register);
+        method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FN_VALUE, "evaluate", "(L" + FRAME + ";)" + VALUE_DESCRIPTOR,
+                false);
+
+        switch (type.ret.getKind()) {
+            case Number, Boolean, String -> {
+                generateToJava(method, type.ret);
+                method.visitInsn(returnOpcode(type.ret));
+            }
+            case Void -> {
+                method.visitInsn(Opcodes.POP);
+                method.visitInsn(Opcodes.RETURN);
+            }
+            default -> {
+                method.visitVarInsn(Opcodes.ASTORE, scratch_register);
+                method.visitVarInsn(Opcodes.ALOAD, 0);
+                method.visitFieldInsn(Opcodes.GETFIELD, ADAPTER, "marshal", "L" + MARSHAL + ";");
+                method.visitVarInsn(Opcodes.ALOAD, scratch_register);
+                generateType(method, ADAPTER, type.args.size());
+                method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, MARSHAL, "toJava", TO_JAVA_DESCRIPTOR, false);
+                method.visitTypeInsn(Opcodes.CHECKCAST, Names.typename(type.ret));
+                method.visitInsn(Opcodes.ARETURN);
+            }
+        }
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+        cwriter.visitEnd();
+
+        return new CompiledClass(typename, cwriter.toByteArray());
+    }
+
+    private static int returnOpcode(ValueType type) {
+        return switch (type.getKind()) {
+            case Number -> Opcodes.DRETURN;
+            case Boolean -> Opcodes.IRETURN;
+            case Void -> Opcodes.RETURN;
+            default -> Opcodes.ARETURN;
+        };
+    }
+
+    private static boolean isPrimitive(ValueType type) {
+        return type.isKind(ValueType.Kind.Number)
+                || type.isKind(ValueType.Kind.Boolean)
+                || type.isKind(ValueType.Kind.String);
+    }
+
+    /**
+     * Converts the Value on the top of the stack with the static Marshal methods.
+     */
+    private static void generateToJava(MethodVisitor method, ValueType type) {
+        switch (type.getKind()) {
+            case Number -> method.visitMethodInsn(Opcodes.INVOKESTATIC, MARSHAL, "toNumber",
+                    "(" + VALUE_DESCRIPTOR + ")D", false);
+            case Boolean -> method.visitMethodInsn(Opcodes.INVOKESTATIC, MARSHAL, "toBoolean",
+                    "(" + VALUE_DESCRIPTOR + ")I", false);
+            case String -> method.visitMethodInsn(Opcodes.INVOKESTATIC, MARSHAL, "toStr",
+                    "(" + VALUE_DESCRIPTOR + ")Ljava/lang/String;", false);
+            default -> throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Converts the value on the top of the stack with the static Marshal
+     * methods, for Void nothing is consumed.
+     */
+    private static void generateToValue(MethodVisitor method, ValueType type) {
+        switch (type.getKind()) {
+            case Number -> method.visitMethodInsn(Opcodes.INVOKESTATIC, MARSHAL, "fromNumber",
+                    "(D)" + VALUE_DESCRIPTOR, false);
+            case Boolean -> method.visitMethodInsn(Opcodes.INVOKESTATIC, MARSHAL, "fromBoolean",
+                    "(I)" + VALUE_DESCRIPTOR, false);
+            case String -> method.visitMethodInsn(Opcodes.INVOKESTATIC, MARSHAL, "fromStr",
+                    "(Ljava/lang/String;)" + VALUE_DESCRIPTOR, false);
+            case Void -> method.visitMethodInsn(Opcodes.INVOKESTATIC, MARSHAL, "fromVoid",
+                    "()" + VALUE_DESCRIPTOR, false);
+            default -> throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Pushes types[index] of the bridge or adapter.
+     */
+    private static void generateType(MethodVisitor method, String owner, int index) {
+        method.visitVarInsn(Opcodes.ALOAD, 0);
+        method.visitFieldInsn(Opcodes.GETFIELD, owner, "types", TYPES_DESCRIPTOR);
+        method.visitIntInsn(Opcodes.SIPUSH, index);
+        method.visitInsn(Opcodes.AALOAD);
+    }
+
+    private static void generateInitMethod(ClassWriter cwriter, String superclass) {
+        var init = cwriter.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, superclass, "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(1, 1);
+        init.visitEnd();
+    }
+}
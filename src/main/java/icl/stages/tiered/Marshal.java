@@ -0,0 +1,159 @@
+package icl.stages.tiered;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import icl.ValueType;
+import icl.stages.interpretor.value.Value;
+import icl.stages.jvm.Names;
+
+/**
+ * Converts values between the interpreter and compiled code.
+ *
+ * Numbers, booleans and strings are converted by the static methods, which are
+ * called directly by the generated bridges and adapters.
+ * Records are copied, they are immutable so the copy can not be observed.
+ * Functions are wrapped, unless they already wrap a function of the other side.
+ */
+public class Marshal {
+    private static class Layout {
+        final Constructor<?> constructor;
+        // In the layout order of the record type
+        final Field[] fields;
+        final ValueType[] types;
+
+        Layout(Constructor<?> constructor, Field[] fields, ValueType[] types) {
+            this.constructor = constructor;
+            this.fields = fields;
+            this.types = types;
+        }
+    }
+
+    private final TierRuntime runtime;
+    // Compiled record classes, by identity because hashing a record type walks
+    // all of its fields and the types reaching the marshal are few
+    private final Map<ValueType.Record, Layout> records;
+
+    Marshal(TierRuntime runtime) {
+        this.runtime = runtime;
+        this.records = new IdentityHashMap<>();
+    }
+
+    public static double toNumber(Value value) {
+        return value.getNumber().getValue();
+    }
+
+    public static int toBoolean(Value value) {
+        return value.getBoolean().getValue() ? 1 : 0;
+    }
+
+    public static String toStr(Value value) {
+        return value.getString().getValue();
+    }
+
+    public static Value fromNumber(double value) {
+        return Value.createNumber(value);
+    }
+
+    public static Value fromBoolean(int value) {
+        return Value.createBoolean(value != 0);
+    }
+
+    public static Value fromStr(String value) {
+        return Value.createString(value);
+    }
+
+    public static Value fromVoid() {
+        return Value.createVoid();
+    }
+
+    /**
+     * Converts an interpreter value to the representation used by compiled code.
+     * Numbers and booleans are returned boxed.
+     */
+    public Object toJava(Value value, ValueType type) {
+        try {
+            return switch (type.getKind()) {
+                case Number -> toNumber(value);
+                case Boolean -> toBoolean(value);
+                case String -> toStr(value);
+                case Record -> {
+                    var layout = this.layout(type.getRecord());
+                    var source = value.getRecord();
+                    var object = layout.constructor.newInstance();
+                    for (var i = 0; i < layout.fields.length; ++i)
+                        layout.fields[i].set(object, this.toJava(source.getField(i), layout.types[i]));
+                    yield object;
+                }
+                case Function -> {
+                    var function = value.getFunction();
+                    var code = function.getCode();
+                    if (code instanceof Bridge bridge)
+                        yield bridge.target;
+                    if (code instanceof TieredCode tiered && tiered.compiled() != null)
+                        yield tiered.compiled();
+                    var adapter = this.runtime.adapter(type.getFunction());
+                    adapter.target = function;
+                    yield adapter;
+                }
+                default -> throw new IllegalStateException("Cannot marshal type " + type);
+            };
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Converts an object created by compiled code to an interpreter value.
+     */
+    public Value toValue(Object object, ValueType type) {
+        try {
+            return switch (type.getKind()) {
+                case Number -> fromNumber((Double) object);
+                case Boolean -> fromBoolean((Integer) object);
+                case String -> fromStr((String) object);
+                case Record -> {
+                    var layout = this.layout(type.getRecord());
+                    var values = new Value[layout.fields.length];
+                    for (var i = 0; i < layout.fields.length; ++i)
+                        values[i] = this.toValue(layout.fields[i].get(object), layout.types[i]);
+                    yield Value.createRecord(type, values);
+                }
+                case Function -> {
+                    if (object instanceof Adapter adapter)
+                        yield adapter.target;
+                    var function = type.getFunction();
+                    var bridge = this.runtime.bridge(function);
+                    bridge.target = object;
+                    yield Value.createFunction(type, null, function.args.size() + 1, bridge);
+                }
+                default -> throw new IllegalStateException("Cannot marshal type " + type);
+            };
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Layout layout(ValueType.Record record) throws ReflectiveOperationException {
+        var layout = this.records.get(record);
+        if (layout == null) {
+            var record_class = this.runtime.load(Names.typename(record));
+            var constructor = record_class.getConstructor();
+            var fields = new Field[record.size()];
+            var types = new ValueType[record.size()];
+            for (var i = 0; i < fields.length; ++i) {
+                fields[i] = record_class.getField(Names.field(record, record.name(i)));
+                types[i] = record.get(record.name(i));
+            }
+            // Skips the access checks on every use, the members are public anyway
+            constructor.setAccessible(true);
+            for (var field : fields)
+                field.setAccessible(true);
+            layout = new Layout(constructor, fields, types);
+            this.records.put(record, layout);
+        }
+        return layout;
+    }
+}
@@ -0,0 +1,111 @@
+package icl.stages.tiered;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import icl.ValueType;
+import icl.ast.AstFn;
+import icl.stages.interpretor.Code;
+import icl.stages.interpretor.Frame;
+import icl.stages.jvm.CapturedVariable;
+import icl.stages.jvm.Compiler;
+import icl.stages.jvm.Context.Namespace;
+import icl.stages.typecheck.TypeCheckStage;
+
+/**
+ * A function that can be compiled.
+ * The function is compiled once, the first time one of its values gets hot,
+ * and every hot value of the function gets its own instance of the compiled
+ * class.
+ */
+public class Tier {
+    final TierRuntime runtime;
+    private final AstFn fn;
+    private final ValueType.Function type;
+    private final List<FreeVariable> free;
+
+    // Set once compiled
+    private String typename;
+    private boolean failed;
+
+    Tier(TierRuntime runtime, AstFn fn, List<FreeVariable> free) {
+        this.runtime = runtime;
+        this.fn = fn;
+        this.type = fn.getAnnotation(TypeCheckStage.TYPE_KEY).getFunction();
+        this.free = free;
+        this.typename = null;
+        this.failed = false;
+    }
+
+    /**
+     * Wraps the interpreted code of a new value of this function.
+     */
+    public Code code(Code interpreted) {
+        return new TieredCode(this, interpreted);
+    }
+
+    /**
+     * Creates an instance of the compiled function for a function value.
+     *
+     * @param env The closure of the function value
+     * @return The bridge to the instance, or null if the function could not be
+     *         compiled
+     */
+    Bridge instantiate(Frame env) {
+        if (!this.compile())
+            return null;
+
+        try {
+            var marshal = this.runtime.marshal;
+            var function_class = this.runtime.load(this.typename);
+            var function = function_class.getConstructor().newInstance();
+            for (var variable : this.free) {
+                var value = marshal.toJava(env.get(variable.slot), variable.type);
+                function_class.getField(variable.name).set(function, value);
+            }
+
+            var bridge = this.runtime.bridge(this.type);
+            bridge.target = function;
+            return bridge;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            this.failed = true;
+            return null;
+        }
+    }
+
+    /**
+     * Compiles the function and loads its classes, only the first call does
+     * any work.
+     *
+     * @return If the function is compiled
+     */
+    private boolean compile() {
+        if (this.failed)
+            return false;
+        if (this.typename != null)
+            return true;
+
+        try {
+            var context = this.runtime.context;
+            var captured = new ArrayList<CapturedVariable>();
+            for (var variable : this.free)
+                captured.add(new CapturedVariable(variable.name, variable.type, false));
+
+            var typename = context.generate(Namespace.FUNCTION);
+            context.analyze(this.fn);
+            context.emit(Compiler.compile(context, typename, this.fn, captured));
+
+            this.runtime.ensure(ValueType.createFunction(this.type));
+            for (var variable : this.free)
+                this.runtime.ensure(variable.type);
+            this.runtime.link();
+
+            this.typename = typename;
+            return true;
+        } catch (RuntimeException | LinkageError | ClassNotFoundException e) {
+            this.runtime.discard();
+            this.failed = true;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package icl.stages.tiered;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import icl.stages.jvm.CompiledClass;
+
+/**
+ * Defines the classes compiled while the program runs.
+ * Classes are only defined when first loaded, so they can be added in any
+ * order as long as everything they reference is added before they are used.
+ */
+class TierLoader extends ClassLoader {
+    private final Map<String, byte[]> pending;
+
+    TierLoader() {
+        super(TierLoader.class.getClassLoader());
+        this.pending = new HashMap<>();
+    }
+
+    void add(CompiledClass compiled) {
+        this.pending.put(compiled.name, compiled.bytecode);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        var bytecode = this.pending.remove(name);
+        if (bytecode == null)
+            throw new ClassNotFoundException(name);
+        return this.defineClass(name, bytecode, 0, bytecode.length);
+    }
+}
@@ -0,0 +1,146 @@
+package icl.stages.tiered;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import icl.ValueType;
+import icl.stages.jvm.CompiledClass;
+import icl.stages.jvm.Context;
+
+/**
+ * State shared by all the functions compiled while a program runs.
+ * All functions are compiled in the same Context so the classes of records and
+ * function interfaces are only generated once and compiled functions can call
+ * each other directly.
+ */
+class TierRuntime {
+    final int threshold;
+    final Context context;
+    final Marshal marshal;
+    private final TierLoader loader;
+    // Number of classes of the context already given to the loader
+    private int emitted;
+    // By identity, like the record layouts of the Marshal
+    private final Map<ValueType.Function, Class<?>> bridges;
+    private final Map<ValueType.Function, Class<?>> adapters;
+    private int counter;
+
+    TierRuntime(int threshold) {
+        this.threshold = threshold;
+        this.context = new Context();
+        this.marshal = new Marshal(this);
+        this.loader = new TierLoader();
+        this.emitted = 0;
+        this.bridges = new IdentityHashMap<>();
+        this.adapters = new IdentityHashMap<>();
+        this.counter = 0;
+    }
+
+    /**
+     * Makes sure the classes of the given type and of all the types it contains
+     * are compiled.
+     */
+    void ensure(ValueType type) {
+        switch (type.getKind()) {
+            case Function -> {
+                var function = type.getFunction();
+                this.context.compile(function);
+                for (var arg : function.args)
+                    this.ensure(arg);
+                this.ensure(function.ret);
+            }
+            case Record -> {
+                var record = type.getRecord();
+                this.context.compile(record);
+                for (var field : record.fields())
+                    this.ensure(field.getValue());
+            }
+            case Reference -> {
+                var reference = type.getReference();
+                this.context.compile(reference);
+                this.ensure(reference.target);
+            }
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Loads and links all the classes compiled since the last call, so that
+     * invalid bytecode is found before any of it runs.
+     */
+    void link() throws ClassNotFoundException {
+        for (var compiled : this.pending())
+            this.load(compiled.name);
+    }
+
+    /**
+     * Gives the classes compiled since the last call to the loader without
+     * loading them, used after a function fails to compile. The classes of
+     * that function are never referenced, but the record and interface classes
+     * compiled with it are already marked as compiled in the context.
+     */
+    void discard() {
+        this.pending();
+    }
+
+    private List<CompiledClass> pending() {
+        var classes = this.context.classes();
+        var pending = classes.subList(this.emitted, classes.size());
+        this.emitted = classes.size();
+        for (var compiled : pending)
+            this.loader.add(compiled);
+        return pending;
+    }
+
+    Class<?> load(String typename) throws ClassNotFoundException {
+        return Class.forName(typename, true, this.loader);
+    }
+
+    /**
+     * Creates a bridge for a compiled function of the given type, the target
+     * must be set by the caller.
+     */
+    Bridge bridge(ValueType.Function type) throws ReflectiveOperationException {
+        var bridge_class = this.bridges.get(type);
+        if (bridge_class == null) {
+            var typename = "tier_bridge_" + this.counter++;
+            this.loader.add(Generator.bridge(typename, type));
+            bridge_class = this.load(typename);
+            this.bridges.put(type, bridge_class);
+        }
+        var bridge = (Bridge) bridge_class.getConstructor().newInstance();
+        bridge.marshal = this.marshal;
+        bridge.types = types(type);
+        return bridge;
+    }
+
+    /**
+     * Creates an adapter for an interpreted function of the given type, the
+     * target must be set by the caller.
+     */
+    Adapter adapter(ValueType.Function type) throws ReflectiveOperationException {
+        var adapter_class = this.adapters.get(type);
+        if (adapter_class == null) {
+            var typename = "tier_adapter_" + this.counter++;
+            this.ensure(ValueType.createFunction(type));
+            this.loader.add(Generator.adapter(typename, type));
+            this.link();
+            adapter_class = this.load(typename);
+            this.adapters.put(type, adapter_class);
+        }
+        var adapter = (Adapter) adapter_class.getConstructor().newInstance();
+        adapter.marshal = this.marshal;
+        adapter.types = types(type);
+        return adapter;
+    }
+
+    private static ValueType[] types(ValueType.Function type) {
+        var types = new ValueType[type.args.size() + 1];
+        for (var i = 0; i < type.args.size(); ++i)
+            types[i] = type.args.get(i);
+        types[types.length - 1] = type.ret;
+        return types;
+    }
+}
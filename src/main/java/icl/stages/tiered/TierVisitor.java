@@ -0,0 +1,169 @@
+package icl.stages.tiered;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import icl.Environment;
+import icl.ValueType;
+import icl.ast.AstAssign;
+import icl.ast.AstBinOp;
+import icl.ast.AstDecl;
+import icl.ast.AstFn;
+import icl.ast.AstScope;
+import icl.ast.AstVar;
+import icl.ast.BaseAstVisitor;
+import icl.stages.resolve.Capture;
+import icl.stages.resolve.ResolverStage;
+import icl.stages.resolve.Slot;
+import icl.stages.typecheck.TypeCheckStage;
+
+/**
+ * Finds the functions that can be compiled and annotates them with a Tier.
+ */
+class TierVisitor extends BaseAstVisitor {
+	private static class Binding {
+		final boolean mutable;
+		final int level;
+
+		Binding(boolean mutable, int level) {
+			this.mutable = mutable;
+			this.level = level;
+		}
+	}
+
+	private static class Candidate {
+		final int level;
+		// Free variables in the order they are stored in the closure
+		final List<Capture> captures;
+		final Map<String, FreeVariable> free;
+		boolean tierable;
+
+		Candidate(int level, List<Capture> captures) {
+			this.level = level;
+			this.captures = captures;
+			this.free = new LinkedHashMap<>();
+			this.tierable = true;
+		}
+
+		int indexOf(String name) {
+			for (var i = 0; i < this.captures.size(); ++i)
+				if (this.captures.get(i).name.equals(name))
+					return i;
+			throw new IllegalStateException("Variable '" + name + "' is not captured");
+		}
+	}
+
+	private final TierRuntime runtime;
+	private final List<Candidate> candidates;
+	private Environment<Binding> env;
+	private int level;
+
+	TierVisitor(TierRuntime runtime) {
+		this.runtime = runtime;
+		this.candidates = new ArrayList<>();
+		this.env = new Environment<>();
+		this.level = 0;
+	}
+
+	private void reference(String name, ValueType type) {
+		var binding = this.env.lookup(name);
+		for (var candidate : this.candidates) {
+			if (binding.level >= candidate.level)
+				continue;
+			if (binding.mutable) {
+				candidate.tierable = false;
+				continue;
+			}
+			// The free variable is read from the closure of the function value
+			var slot = new Slot(0, candidate.indexOf(name));
+			candidate.free.putIfAbsent(name, new FreeVariable(name, type, slot));
+		}
+	}
+
+	private void untierable() {
+		for (var candidate : this.candidates)
+			candidate.tierable = false;
+	}
+
+	@Override
+	public void acceptBinOp(AstBinOp node) {
+		if (node.kind == AstBinOp.Kind.IDIV)
+			this.untierable();
+		super.acceptBinOp(node);
+	}
+
+	@Override
+	public void acceptDecl(AstDecl node) {
+		node.value.accept(this);
+		this.env.define(node.name, new Binding(node.mutable, this.level));
+	}
+
+	@Override
+	public void acceptScope(AstScope node) {
+		this.env = this.env.beginScope();
+		super.acceptScope(node);
+		this.env = this.env.endScope();
+	}
+
+	@Override
+	public void acceptVar(AstVar node) {
+		this.reference(node.name, node.getAnnotation(TypeCheckStage.TYPE_KEY));
+	}
+
+	@Override
+	public void acceptAssign(AstAssign assign) {
+		// Only mutable variables can be assigned
+		this.reference(assign.name, ValueType.createVoid());
+		super.acceptAssign(assign);
+	}
+
+	@Override
+	public void acceptFn(AstFn fn) {
+		this.env = this.env.beginScope();
+		this.level += 1;
+		this.env.define("this", new Binding(false, this.level));
+		for (var arg : fn.arguments)
+			this.env.define(arg.name, new Binding(false, this.level));
+
+		var candidate = new Candidate(this.level, fn.getAnnotation(ResolverStage.CAPTURES_KEY));
+		this.candidates.add(candidate);
+		fn.body.accept(this);
+		this.candidates.remove(this.candidates.size() - 1);
+
+		this.level -= 1;
+		this.env = this.env.endScope();
+
+		var type = fn.getAnnotation(TypeCheckStage.TYPE_KEY);
+		if (!candidate.tierable || !isMarshalable(type))
+			return;
+		for (var variable : candidate.free.values())
+			if (!isMarshalable(variable.type))
+				return;
+		fn.annotate(TieredStage.TIER_KEY, new Tier(this.runtime, fn, List.copyOf(candidate.free.values())));
+	}
+
+	/**
+	 * Checks if values of the given type can be converted by the Marshal.
+	 */
+	private static boolean isMarshalable(ValueType type) {
+		return switch (type.getKind()) {
+			case Number, Boolean, String -> true;
+			case Record -> {
+				for (var field : type.getRecord().fields())
+					if (!isMarshalable(field.getValue()))
+						yield false;
+				yield true;
+			}
+			case Function -> {
+				var function = type.getFunction();
+				for (var arg : function.args)
+					if (!isMarshalable(arg))
+						yield false;
+				yield function.ret.isKind(ValueType.Kind.Void) || isMarshalable(function.ret);
+			}
+			default -> false;
+		};
+	}
+}
@@ -0,0 +1,43 @@
+package icl.stages.tiered;
+
+import icl.stages.interpretor.Code;
+import icl.stages.interpretor.Frame;
+import icl.stages.interpretor.value.Value;
+
+/**
+ * Code of a function value that can be compiled.
+ * Runs the interpreted code until the function value reaches the threshold and
+ * then switches to a bridge to the compiled function.
+ */
+class TieredCode implements Code {
+    private final Tier tier;
+    private final int threshold;
+    private Code code;
+    private int calls;
+
+    TieredCode(Tier tier, Code interpreted) {
+        this.tier = tier;
+        this.threshold = tier.runtime.threshold;
+        this.code = interpreted;
+        this.calls = 0;
+    }
+
+    /**
+     * @return The compiled function, or null if it was not compiled yet
+     */
+    Object compiled() {
+        if (this.code instanceof Bridge bridge)
+            return bridge.target;
+        return null;
+    }
+
+    @Override
+    public Value execute(Frame frame) {
+        if (this.calls < this.threshold && ++this.calls == this.threshold) {
+            var bridge = this.tier.instantiate(frame.parent);
+            if (bridge != null)
+                this.code = bridge;
+        }
+        return this.code.execute(frame);
+    }
+}
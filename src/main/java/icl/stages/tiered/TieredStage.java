@@ -0,0 +1,53 @@
+package icl.stages.tiered;
+
+import icl.ast.AnnotationKey;
+import icl.ast.AstNode;
+import icl.pipeline.PipelineStage;
+import icl.stages.interpretor.value.Value;
+
+/*-
+ * Interprets the program and compiles hot functions to JVM bytecode while it runs.
+ *
+ * Every function value counts its calls, once a function reaches the threshold
+ * its AstFn is compiled with the jvm Compiler, the classes are loaded into the
+ * running JVM and later calls to that function value go to the compiled code.
+ * Values that cross between interpreted and compiled code are converted by the
+ * Marshal, so only functions whose boundary can be converted are compiled:
+ *  - Arguments, return value and captured variables are numbers, booleans,
+ *    strings, records or functions of those.
+ *  - Captured variables are immutable, the compiled function gets a copy of them.
+ *  - The body does not use an operation the compiler does not implement with
+ *    the same semantics as the interpreter (integer division).
+ * A function that fails to compile keeps being interpreted.
+ *
+ * Must run after the ResolverStage.
+ * ----------------
+ *
+ * Annotations:
+ *  AstFn:
+ *      - TIER_KEY: The compilation unit, only present if the function can be compiled.
+ */
+public class TieredStage implements PipelineStage<AstNode, Value> {
+    public static final AnnotationKey<Tier> TIER_KEY = new AnnotationKey<>("tier");
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    private final PipelineStage<AstNode, Value> interpreter;
+    private final int threshold;
+
+    /**
+     * @param interpreter The stage that runs the program, must wrap the code of
+     *                    annotated functions with Tier.code
+     * @param threshold   Number of calls to a function value before compiling it
+     */
+    public TieredStage(PipelineStage<AstNode, Value> interpreter, int threshold) {
+        this.interpreter = interpreter;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public Value process(AstNode input) {
+        var runtime = new TierRuntime(this.threshold);
+        input.accept(new TierVisitor(runtime));
+        return this.interpreter.process(input);
+    }
+}
@@ -0,0 +1,75 @@
+package icl.stages.vm;
+
+import java.util.Arrays;
+
+import icl.stages.interpretor.Frame;
+import icl.stages.interpretor.value.Value;
+
+/**
+ * A call in progress on the machine stack.
+ * The state of the running activation lives in local variables of the dispatch
+ * loop, it is only saved here when it calls another function.
+ *
+ * Every activation keeps the one it called last and reuses it, and its
+ * registers, for the next call. A returned activation stays reachable from its
+ * caller, so it drops the values it refers to when it returns.
+ */
+final class Activation {
+    final Activation caller;
+    private Activation callee;
+
+    // Register of the caller that receives the return value
+    int result;
+    Chunk chunk;
+    Frame frame;
+    double[] numbers;
+    Value[] values;
+    // Value registers that may hold a value, of all the chunks entered since
+    // the last return
+    private int used;
+    int pc;
+    // Return value of the program, only set on the bottom activation
+    Value returned;
+
+    Activation(Activation caller) {
+        this.caller = caller;
+        this.callee = null;
+        this.numbers = new double[0];
+        this.values = new Value[0];
+        this.used = 0;
+    }
+
+    /**
+     * @return The activation for a call made by this activation
+     */
+    Activation call(int result, Chunk chunk, Frame frame) {
+        if (this.callee == null)
+            this.callee = new Activation(this);
+        this.callee.result = result;
+        this.callee.enter(chunk, frame);
+        return this.callee;
+    }
+
+    /**
+     * Starts executing the given chunk in this activation.
+     */
+    void enter(Chunk chunk, Frame frame) {
+        this.chunk = chunk;
+        this.frame = frame;
+        if (this.numbers.length < chunk.numberRegisters)
+            this.numbers = new double[chunk.numberRegisters];
+        if (this.values.length < chunk.valueRegisters)
+            this.values = new Value[chunk.valueRegisters];
+        this.used = Math.max(this.used, chunk.valueRegisters);
+        this.pc = 0;
+    }
+
+    /**
+     * Clears the references of this activation after it returns.
+     */
+    void leave() {
+        Arrays.fill(this.values, 0, this.used, null);
+        this.used = 0;
+        this.frame = null;
+    }
+}
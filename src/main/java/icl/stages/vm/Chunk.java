@@ -0,0 +1,30 @@
+package icl.stages.vm;
+
+import icl.stages.interpretor.Code;
+import icl.stages.interpretor.Frame;
+import icl.stages.interpretor.value.Value;
+
+/**
+ * The bytecode of a function, or of the program, together with its constant
+ * pools and the number of registers it needs.
+ */
+final class Chunk implements Code {
+    final int[] code;
+    final double[] numbers;
+    final Object[] constants;
+    final int numberRegisters;
+    final int valueRegisters;
+
+    Chunk(int[] code, double[] numbers, Object[] constants, int numberRegisters, int valueRegisters) {
+        this.code = code;
+        this.numbers = numbers;
+        this.constants = constants;
+        this.numberRegisters = numberRegisters;
+        this.valueRegisters = valueRegisters;
+    }
+
+    @Override
+    public Value execute(Frame frame) {
+        return Machine.run(this, frame);
+    }
+}
@@ -0,0 +1,97 @@
+package icl.stages.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates the bytecode and constants of a chunk and allocates its
+ * registers.
+ * Registers are allocated like a stack, a node can release every register
+ * allocated after a mark once it has consumed the results of its children.
+ */
+final class ChunkBuilder {
+    private int[] code;
+    private int size;
+    private final List<Double> numbers;
+    private final Map<Double, Integer> numberIndices;
+    private final List<Object> constants;
+
+    private int numberTop;
+    private int valueTop;
+    private int maxNumbers;
+    private int maxValues;
+
+    ChunkBuilder() {
+        this.code = new int[64];
+        this.size = 0;
+        this.numbers = new ArrayList<>();
+        this.numberIndices = new HashMap<>();
+        this.constants = new ArrayList<>();
+    }
+
+    void emit(int... words) {
+        if (this.size + words.length > this.code.length)
+            this.code = Arrays.copyOf(this.code, Math.max(this.code.length * 2, this.size + words.length));
+        System.arraycopy(words, 0, this.code, this.size, words.length);
+        this.size += words.length;
+    }
+
+    /**
+     * @return The position of the next emitted word
+     */
+    int position() {
+        return this.size;
+    }
+
+    void patch(int position, int word) {
+        this.code[position] = word;
+    }
+
+    int number(double value) {
+        return this.numberIndices.computeIfAbsent(value, v -> {
+            this.numbers.add(v);
+            return this.numbers.size() - 1;
+        });
+    }
+
+    int constant(Object value) {
+        this.constants.add(value);
+        return this.constants.size() - 1;
+    }
+
+    int allocNumber() {
+        var register = this.numberTop++;
+        this.maxNumbers = Math.max(this.maxNumbers, this.numberTop);
+        return register;
+    }
+
+    int allocValue() {
+        var register = this.valueTop++;
+        this.maxValues = Math.max(this.maxValues, this.valueTop);
+        return register;
+    }
+
+    long mark() {
+        return ((long) this.numberTop << 32) | this.valueTop;
+    }
+
+    void release(long mark) {
+        this.numberTop = (int) (mark >>> 32);
+        this.valueTop = (int) mark;
+    }
+
+    Chunk build() {
+        var numbers = new double[this.numbers.size()];
+        for (var i = 0; i < numbers.length; ++i)
+            numbers[i] = this.numbers.get(i);
+        return new Chunk(
+                Arrays.copyOf(this.code, this.size),
+                numbers,
+                this.constants.toArray(),
+                this.maxNumbers,
+                this.maxValues);
+    }
+}
@@ -0,0 +1,24 @@
+package icl.stages.vm;
+
+import java.util.List;
+
+import icl.ValueType;
+import icl.stages.resolve.Capture;
+
+/**
+ * Everything needed to create a function value at runtime except its
+ * environment.
+ */
+final class FunctionConstant {
+    final ValueType type;
+    final int frameSize;
+    final List<Capture> captures;
+    final Chunk chunk;
+
+    FunctionConstant(ValueType type, int frameSize, List<Capture> captures, Chunk chunk) {
+        this.type = type;
+        this.frameSize = frameSize;
+        this.captures = captures;
+        this.chunk = chunk;
+    }
+}
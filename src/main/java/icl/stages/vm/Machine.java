@@ -0,0 +1,357 @@
+package icl.stages.vm;
+
+import icl.runtime.FastMath;
+import icl.runtime.Output;
+import icl.stages.interpretor.Frame;
+import icl.stages.interpretor.value.RefValue;
+import icl.stages.interpretor.value.Value;
+
+/*-
+ * The dispatch loop.
+ *
+ * Calls to functions compiled by the machine do not recurse on the Java stack,
+ * the caller is saved in its Activation and the callee is run next by the same
+ * loop.
+ * A call in tail position replaces the running activation, so tail recursive
+ * functions run in constant space.
+ * Functions with any other code are called through FnValue.evaluate.
+ */
+final class Machine {
+
+	private Machine() {
+	}
+
+	static Value run(Chunk chunk, Frame frame) {
+		var root = new Activation(null);
+		root.enter(chunk, frame);
+		var activation = root;
+		while (activation != null)
+			activation = execute(activation);
+		return root.returned;
+	}
+
+	/**
+	 * Runs the given activation until it calls a function or returns.
+	 * Kept separate from the loop over activations so that it is invoked often
+	 * and compiled as a regular method instead of only through on stack
+	 * replacement.
+	 *
+	 * @return The activation to run next, or null if the program returned
+	 */
+	private static Activation execute(Activation activation) {
+		var frame = activation.frame;
+		var code = activation.chunk.code;
+		var numbers = activation.chunk.numbers;
+		var constants = activation.chunk.constants;
+		var n = activation.numbers;
+		var v = activation.values;
+		var pc = activation.pc;
+
+		while (true) {
+			switch (code[pc]) {
+				case Opcode.NCONST -> {
+					n[code[pc + 1]] = numbers[code[pc + 2]];
+					pc += 3;
+				}
+				case Opcode.KCONST -> {
+					v[code[pc + 1]] = (Value) constants[code[pc + 2]];
+					pc += 3;
+				}
+				case Opcode.LOAD -> {
+					v[code[pc + 1]] = frame.up(code[pc + 2]).slots[code[pc + 3]];
+					pc += 4;
+				}
+				case Opcode.LOAD0 -> {
+					v[code[pc + 1]] = frame.slots[code[pc + 2]];
+					pc += 3;
+				}
+				case Opcode.NLOAD -> {
+					n[code[pc + 1]] = frame.up(code[pc + 2]).slots[code[pc + 3]].getNumber().value;
+					pc += 4;
+				}
+				case Opcode.NLOAD0 -> {
+					n[code[pc + 1]] = frame.slots[code[pc + 2]].getNumber().value;
+					pc += 3;
+				}
+				case Opcode.STORE -> {
+					frame.up(code[pc + 2]).slots[code[pc + 3]] = v[code[pc + 1]];
+					pc += 4;
+				}
+				case Opcode.STORE0 -> {
+					frame.slots[code[pc + 2]] = v[code[pc + 1]];
+					pc += 3;
+				}
+				case Opcode.ASSIGN -> {
+					var slots = frame.up(code[pc + 2]).slots;
+					var index = code[pc + 3];
+					// Assigning to a reference stores the value in the reference itself
+					if (slots[index] instanceof RefValue ref)
+						ref.setValue(v[code[pc + 1]]);
+					else
+						slots[index] = v[code[pc + 1]];
+					pc += 4;
+				}
+				case Opcode.BOXN -> {
+					v[code[pc + 1]] = Value.createNumber(n[code[pc + 2]]);
+					pc += 3;
+				}
+				case Opcode.BOXB -> {
+					v[code[pc + 1]] = Value.createBoolean(n[code[pc + 2]] != 0);
+					pc += 3;
+				}
+				case Opcode.UNBOXN -> {
+					n[code[pc + 1]] = v[code[pc + 2]].getNumber().value;
+					pc += 3;
+				}
+				case Opcode.UNBOXB -> {
+					n[code[pc + 1]] = v[code[pc + 2]].getBoolean().value ? 1 : 0;
+					pc += 3;
+				}
+				case Opcode.NMOVE -> {
+					n[code[pc + 1]] = n[code[pc + 2]];
+					pc += 3;
+				}
+				case Opcode.MOVE -> {
+					v[code[pc + 1]] = v[code[pc + 2]];
+					pc += 3;
+				}
+				case Opcode.ADD -> {
+					n[code[pc + 1]] = n[code[pc + 2]] + n[code[pc + 3]];
+					pc += 4;
+				}
+				case Opcode.SUB -> {
+					n[code[pc + 1]] = n[code[pc + 2]] - n[code[pc + 3]];
+					pc += 4;
+				}
+				case Opcode.MUL -> {
+					n[code[pc + 1]] = n[code[pc + 2]] * n[code[pc + 3]];
+					pc += 4;
+				}
+				case Opcode.DIV -> {
+					n[code[pc + 1]] = n[code[pc + 2]] / n[code[pc + 3]];
+					pc += 4;
+				}
+				case Opcode.IDIV -> {
+					n[code[pc + 1]] = Math.floor(n[code[pc + 2]] / n[code[pc + 3]]);
+					pc += 4;
+				}
+				case Opcode.EQ -> {
+					n[code[pc + 1]] = n[code[pc + 2]] == n[code[pc + 3]] ? 1 : 0;
+					pc += 4;
+				}
+				case Opcode.GT -> {
+					n[code[pc + 1]] = n[code[pc + 2]] > n[code[pc + 3]] ? 1 : 0;
+					pc += 4;
+				}
+				case Opcode.GTE -> {
+					n[code[pc + 1]] = n[code[pc + 2]] >= n[code[pc + 3]] ? 1 : 0;
+					pc += 4;
+				}
+				case Opcode.LT -> {
+					n[code[pc + 1]] = n[code[pc + 2]] < n[code[pc + 3]] ? 1 : 0;
+					pc += 4;
+				}
+				case Opcode.LTE -> {
+					n[code[pc + 1]] = n[code[pc + 2]] <= n[code[pc + 3]] ? 1 : 0;
+					pc += 4;
+				}
+				case Opcode.NEG -> {
+					n[code[pc + 1]] = -n[code[pc + 2]];
+					pc += 3;
+				}
+				case Opcode.NOT -> {
+					n[code[pc + 1]] = n[code[pc + 2]] == 0 ? 1 : 0;
+					pc += 3;
+				}
+				case Opcode.SCAT -> {
+					var left = v[code[pc + 2]].getString().getValue();
+					var right = v[code[pc + 3]].getString().getValue();
+					v[code[pc + 1]] = Value.createString(left + right);
+					pc += 4;
+				}
+				case Opcode.SEQ -> {
+					var left = v[code[pc + 2]].getString().getValue();
+					var right = v[code[pc + 3]].getString().getValue();
+					n[code[pc + 1]] = left.equals(right) ? 1 : 0;
+					pc += 4;
+				}
+				case Opcode.JMP -> {
+					pc = code[pc + 1];
+				}
+				case Opcode.JF -> {
+					pc = n[code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+				}
+				case Opcode.JT -> {
+					pc = n[code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+				}
+				case Opcode.JNEQ -> {
+					pc = n[code[pc + 1]] == n[code[pc + 2]] ? pc + 4 : code[pc + 3];
+				}
+				case Opcode.JNGT -> {
+					pc = n[code[pc + 1]] > n[code[pc + 2]] ? pc + 4 : code[pc + 3];
+				}
+				case Opcode.JNGTE -> {
+					pc = n[code[pc + 1]] >= n[code[pc + 2]] ? pc + 4 : code[pc + 3];
+				}
+				case Opcode.JNLT -> {
+					pc = n[code[pc + 1]] < n[code[pc + 2]] ? pc + 4 : code[pc + 3];
+				}
+				case Opcode.JNLTE -> {
+					pc = n[code[pc + 1]] <= n[code[pc + 2]] ? pc + 4 : code[pc + 3];
+				}
+				case Opcode.NEW -> {
+					v[code[pc + 1]] = Value.createReference(v[code[pc + 2]]);
+					pc += 3;
+				}
+				case Opcode.DEREF -> {
+					v[code[pc + 1]] = v[code[pc + 2]].getReference().getValue();
+					pc += 3;
+				}
+				case Opcode.RECORD -> {
+					var record = (RecordConstant) constants[code[pc + 2]];
+					var count = code[pc + 3];
+					var fields = new Value[count];
+					for (var i = 0; i < count; ++i)
+						fields[record.indices[i]] = v[code[pc + 4 + i]];
+					v[code[pc + 1]] = Value.createRecord(record.type, fields);
+					pc += 4 + count;
+				}
+				case Opcode.FIELD -> {
+					v[code[pc + 1]] = v[code[pc + 2]].getRecord().getField(code[pc + 3]);
+					pc += 4;
+				}
+				case Opcode.NFIELD -> {
+					n[code[pc + 1]] = v[code[pc + 2]].getRecord().getField(code[pc + 3]).getNumber().value;
+					pc += 4;
+				}
+				case Opcode.CLOSURE -> {
+					var function = (FunctionConstant) constants[code[pc + 2]];
+					var closure = frame.capture(function.captures);
+					v[code[pc + 1]] = Value.createFunction(function.type, closure, function.frameSize, function.chunk);
+					pc += 3;
+				}
+				case Opcode.CALL, Opcode.TAILCALL -> {
+					var function = v[code[pc + 2]].getFunction();
+					var count = code[pc + 3];
+					var callee = function.createFrame();
+					for (var i = 0; i < count; ++i)
+						callee.slots[i + 1] = v[code[pc + 4 + i]];
+
+					if (!(function.getCode() instanceof Chunk target)) {
+						v[code[pc + 1]] = function.evaluate(callee);
+						pc += 4 + count;
+						continue;
+					}
+
+					if (code[pc] == Opcode.TAILCALL) {
+						activation.enter(target, callee);
+						return activation;
+					}
+					activation.frame = frame;
+					activation.pc = pc + 4 + count;
+					return activation.call(code[pc + 1], target, callee);
+				}
+				case Opcode.FIELDCALL -> {
+					var function = v[code[pc + 2]].getRecord().getField(code[pc + 3]).getFunction();
+					var count = code[pc + 4];
+					var callee = function.createFrame();
+					for (var i = 0; i < count; ++i)
+						callee.slots[i + 1] = v[code[pc + 5 + i]];
+
+					if (!(function.getCode() instanceof Chunk target)) {
+						v[code[pc + 1]] = function.evaluate(callee);
+						pc += 5 + count;
+						continue;
+					}
+
+					activation.frame = frame;
+					activation.pc = pc + 5 + count;
+					return activation.call(code[pc + 1], target, callee);
+				}
+				case Opcode.PRINT -> {
+					if (code[pc + 2] != 0)
+						Output.println(v[code[pc + 1]].toString());
+					else
+						Output.print(v[code[pc + 1]].toString());
+					pc += 3;
+				}
+				case Opcode.NPRINT -> {
+					var text = String.valueOf((int) n[code[pc + 1]]);
+					if (code[pc + 2] != 0)
+						Output.println(text);
+					else
+						Output.print(text);
+					pc += 3;
+				}
+				case Opcode.RET -> {
+					var value = v[code[pc + 1]];
+					var caller = activation.caller;
+					if (caller == null) {
+						activation.returned = value;
+						return null;
+					}
+					caller.values[activation.result] = value;
+					activation.leave();
+					return caller;
+				}
+				case Opcode.ABS -> {
+					n[code[pc + 1]] = Math.abs(n[code[pc + 2]]);
+					pc += 3;
+				}
+				case Opcode.COS -> {
+					n[code[pc + 1]] = Math.cos(n[code[pc + 2]]);
+					pc += 3;
+				}
+				case Opcode.SIN -> {
+					n[code[pc + 1]] = Math.sin(n[code[pc + 2]]);
+					pc += 3;
+				}
+				case Opcode.TAN -> {
+					n[code[pc + 1]] = Math.tan(n[code[pc + 2]]);
+					pc += 3;
+				}
+				case Opcode.FMA -> {
+					n[code[pc + 1]] = Math.fma(n[code[pc + 2]], n[code[pc + 3]], n[code[pc + 4]]);
+					pc += 5;
+				}
+				case Opcode.FMS -> {
+					n[code[pc + 1]] = Math.fma(n[code[pc + 2]], n[code[pc + 3]], -n[code[pc + 4]]);
+					pc += 5;
+				}
+				case Opcode.FCOS -> {
+					n[code[pc + 1]] = FastMath.cos(n[code[pc + 2]]);
+					pc += 3;
+				}
+				case Opcode.FSIN -> {
+					n[code[pc + 1]] = FastMath.sin(n[code[pc + 2]]);
+					pc += 3;
+				}
+				case Opcode.FTAN -> {
+					n[code[pc + 1]] = FastMath.tan(n[code[pc + 2]]);
+					pc += 3;
+				}
+				case Opcode.SQRT -> {
+					n[code[pc + 1]] = Math.sqrt(n[code[pc + 2]]);
+					pc += 3;
+				}
+				case Opcode.POW -> {
+					n[code[pc + 1]] = Math.pow(n[code[pc + 2]], n[code[pc + 3]]);
+					pc += 4;
+				}
+				case Opcode.MIN -> {
+					n[code[pc + 1]] = Math.min(n[code[pc + 2]], n[code[pc + 3]]);
+					pc += 4;
+				}
+				case Opcode.MAX -> {
+					n[code[pc + 1]] = Math.max(n[code[pc + 2]], n[code[pc + 3]]);
+					pc += 4;
+				}
+				case Opcode.RAND -> {
+					n[code[pc + 1]] = Math.random();
+					pc += 2;
+				}
+				default -> throw new IllegalStateException("Invalid opcode " + code[pc] + " at " + pc);
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package icl.stages.vm;
+
+/*-
+ * Instruction set of the register machine.
+ *
+ * An instruction is an opcode followed by its operands, all stored in the same
+ * int[]. Every activation has two register files:
+ *  N: double registers, used for numbers and booleans (1 is true, 0 is false).
+ *  V: Value registers, used for everything else and for boxed values.
+ * Variables live in the frame slots assigned by the ResolverStage, registers
+ * only hold temporaries.
+ *
+ * Operand notation:
+ *  n    - N register
+ *  v    - V register
+ *  k    - index in the number or constant pool
+ *  d, i - frame depth and slot index, or field index in the record layout
+ *  pc   - absolute jump target
+ */
+final class Opcode {
+    // n <- numbers[k]
+    static final int NCONST = 0;
+    // v <- constants[k]
+    static final int KCONST = 1;
+
+    // v <- frame.up(d).slots[i]
+    static final int LOAD = 2;
+    // v <- frame.slots[i]
+    static final int LOAD0 = 3;
+    // n <- frame.up(d).slots[i] unboxed
+    static final int NLOAD = 4;
+    // n <- frame.slots[i] unboxed
+    static final int NLOAD0 = 5;
+    // frame.up(d).slots[i] <- v
+    static final int STORE = 6;
+    // frame.slots[i] <- v
+    static final int STORE0 = 7;
+    // frame.up(d).slots[i] <- v, or the reference stored there if there is one
+    static final int ASSIGN = 8;
+
+    // v <- box(n) as a number
+    static final int BOXN = 9;
+    // v <- box(n) as a boolean
+    static final int BOXB = 10;
+    // n <- unbox(v) from a number
+    static final int UNBOXN = 11;
+    // n <- unbox(v) from a boolean
+    static final int UNBOXB = 12;
+    // n <- n, v <- v
+    static final int NMOVE = 13;
+    static final int MOVE = 14;
+
+    // n <- n op n
+    static final int ADD = 15;
+    static final int SUB = 16;
+    static final int MUL = 17;
+    static final int DIV = 18;
+    static final int IDIV = 19;
+    static final int EQ = 20;
+    static final int GT = 21;
+    static final int GTE = 22;
+    static final int LT = 23;
+    static final int LTE = 24;
+    // n <- op n
+    static final int NEG = 25;
+    static final int NOT = 26;
+    // v <- v + v
+    static final int SCAT = 27;
+    // n <- v == v
+    static final int SEQ = 28;
+
+    // pc
+    static final int JMP = 29;
+    // n pc, jumps if n is false
+    static final int JF = 30;
+    // n pc, jumps if n is true
+    static final int JT = 31;
+    // n n pc, jumps if the comparison is false
+    static final int JNEQ = 32;
+    static final int JNGT = 33;
+    static final int JNGTE = 34;
+    static final int JNLT = 35;
+    static final int JNLTE = 36;
+
+    // v <- new reference to v
+    static final int NEW = 37;
+    // v <- value of the reference v
+    static final int DEREF = 38;
+    // v <- record of type constants[k] with count fields v...
+    static final int RECORD = 39;
+    // v <- field i of record v
+    static final int FIELD = 40;
+    // n <- field i of record v unboxed as a number
+    static final int NFIELD = 41;
+    // v <- function constants[k] with its free variables copied from the current frame
+    static final int CLOSURE = 42;
+    // v <- call v with count arguments v...
+    static final int CALL = 43;
+    // v <- call field i of record v with count arguments v...
+    static final int FIELDCALL = 44;
+    // v newline
+    static final int PRINT = 45;
+    // n newline, prints n without decimals
+    static final int NPRINT = 46;
+    // return v
+    static final int RET = 47;
+    // same operands as CALL, the callee replaces the running function
+    static final int TAILCALL = 48;
+
+    // n <- builtin(n...)
+    static final int ABS = 49;
+    static final int COS = 50;
+    static final int SIN = 51;
+    static final int TAN = 52;
+    static final int SQRT = 53;
+    static final int POW = 54;
+    static final int MIN = 55;
+    static final int MAX = 56;
+    static final int RAND = 57;
+    // icl.runtime.FastMath versions, used in fast math mode
+    static final int FCOS = 58;
+    static final int FSIN = 59;
+    static final int FTAN = 60;
+    // n <- fma(n, n, n), n <- fma(n, n, -n)
+    static final int FMA = 61;
+    static final int FMS = 62;
+
+    private Opcode() {
+    }
+}
@@ -0,0 +1,17 @@
+package icl.stages.vm;
+
+import icl.ValueType;
+
+/**
+ * The type of a record literal and the layout index of each value given to the
+ * RECORD instruction.
+ */
+final class RecordConstant {
+    final ValueType type;
+    final int[] indices;
+
+    RecordConstant(ValueType type, int[] indices) {
+        this.type = type;
+        this.indices = indices;
+    }
+}
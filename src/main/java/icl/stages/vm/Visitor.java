@@ -0,0 +1,476 @@
+package icl.stages.vm;
+
+import java.util.ArrayList;
+
+import icl.ValueType;
+import icl.ast.AstAssign;
+import icl.ast.AstBinOp;
+import icl.ast.AstBool;
+import icl.ast.AstBuiltin;
+import icl.ast.AstCall;
+import icl.ast.AstDecl;
+import icl.ast.AstEmptyNode;
+import icl.ast.AstField;
+import icl.ast.AstFn;
+import icl.ast.AstIf;
+import icl.ast.AstLoop;
+import icl.ast.AstNew;
+import icl.ast.AstNode;
+import icl.ast.AstNum;
+import icl.ast.AstPrint;
+import icl.ast.AstRecord;
+import icl.ast.AstScope;
+import icl.ast.AstStr;
+import icl.ast.AstTypeAlias;
+import icl.ast.AstUnaryOp;
+import icl.ast.AstVar;
+import icl.ast.AstVisitor;
+import icl.stages.interpretor.value.Value;
+import icl.stages.optimize.FastMathStage;
+import icl.stages.resolve.ResolverStage;
+import icl.stages.typecheck.TypeCheckStage;
+
+class Visitor implements AstVisitor {
+
+	private final ChunkBuilder builder;
+	private final boolean tail;
+	int register;
+
+	public Visitor(ChunkBuilder builder, boolean tail) {
+		this.builder = builder;
+		this.tail = tail;
+		this.register = -1;
+	}
+
+	private int compile(AstNode node) {
+		return VmStage.compile(this.builder, node);
+	}
+
+	private int compileValue(AstNode node) {
+		return VmStage.compileValue(this.builder, node);
+	}
+
+	/**
+	 * Sets the result of a node that was computed in a value register, unboxing
+	 * it if the node is of type Number or Boolean.
+	 */
+	private void boxed(long mark, AstNode node, int value) {
+		var type = node.getAnnotation(TypeCheckStage.TYPE_KEY);
+		if (!VmStage.isUnboxed(type)) {
+			this.register = value;
+			return;
+		}
+		this.builder.release(mark);
+		this.register = this.builder.allocNumber();
+		var opcode = type.isKind(ValueType.Kind.Number) ? Opcode.UNBOXN : Opcode.UNBOXB;
+		this.builder.emit(opcode, this.register, value);
+	}
+
+	/**
+	 * Compiles a condition followed by a jump that is taken if it is false.
+	 * Comparisons between numbers are fused with the jump.
+	 *
+	 * @return The position of the jump target, to be patched by the caller
+	 */
+	private int condition(AstNode node) {
+		var mark = this.builder.mark();
+		if (node instanceof AstBinOp binop
+				&& binop.left.getAnnotation(TypeCheckStage.TYPE_KEY).isKind(ValueType.Kind.Number)) {
+			var opcode = switch (binop.kind) {
+				case CMP -> Opcode.JNEQ;
+				case GT -> Opcode.JNGT;
+				case GTE -> Opcode.JNGTE;
+				case LT -> Opcode.JNLT;
+				case LTE -> Opcode.JNLTE;
+				default -> -1;
+			};
+			if (opcode != -1) {
+				var left = this.compile(binop.left);
+				var right = this.compile(binop.right);
+				this.builder.release(mark);
+				this.builder.emit(opcode, left, right, 0);
+				return this.builder.position() - 1;
+			}
+		}
+
+		var value = this.compile(node);
+		this.builder.release(mark);
+		this.builder.emit(Opcode.JF, value, 0);
+		return this.builder.position() - 1;
+	}
+
+	@Override
+	public void acceptNum(AstNum node) {
+		this.register = this.builder.allocNumber();
+		this.builder.emit(Opcode.NCONST, this.register, this.builder.number(node.value));
+	}
+
+	@Override
+	public void acceptBool(AstBool node) {
+		this.register = this.builder.allocNumber();
+		this.builder.emit(Opcode.NCONST, this.register, this.builder.number(node.value ? 1 : 0));
+	}
+
+	@Override
+	public void acceptStr(AstStr node) {
+		this.register = this.builder.allocValue();
+		this.builder.emit(Opcode.KCONST, this.register, this.builder.constant(Value.createString(node.value)));
+	}
+
+	@Override
+	public void acceptBinOp(AstBinOp node) {
+		var operand_type = node.left.getAnnotation(TypeCheckStage.TYPE_KEY);
+		var product = FastMathStage.fusedProduct(node);
+		if (product != null) {
+			var mark = this.builder.mark();
+			int x, y, z;
+			if (product == node.right) {
+				z = this.compile(node.left);
+				x = this.compile(product.left);
+				y = this.compile(product.right);
+			} else {
+				x = this.compile(product.left);
+				y = this.compile(product.right);
+				z = this.compile(node.right);
+			}
+			this.builder.release(mark);
+			this.register = this.builder.allocNumber();
+			var opcode = node.kind == AstBinOp.Kind.SUB ? Opcode.FMS : Opcode.FMA;
+			this.builder.emit(opcode, this.register, x, y, z);
+			return;
+		}
+		if (node.kind == AstBinOp.Kind.LAND || node.kind == AstBinOp.Kind.LOR) {
+			this.logical(node);
+			return;
+		}
+		var mark = this.builder.mark();
+		var left = this.compile(node.left);
+		var right = this.compile(node.right);
+		this.builder.release(mark);
+		switch (operand_type.getKind()) {
+			case Boolean -> {
+				var opcode = switch (node.kind) {
+					case CMP -> Opcode.EQ;
+					default -> throw new IllegalStateException();
+				};
+				this.register = this.builder.allocNumber();
+				this.builder.emit(opcode, this.register, left, right);
+			}
+			case Number -> {
+				var opcode = switch (node.kind) {
+					case ADD -> Opcode.ADD;
+					case SUB -> Opcode.SUB;
+					case MUL -> Opcode.MUL;
+					case DIV -> Opcode.DIV;
+					case IDIV -> Opcode.IDIV;
+					case CMP -> Opcode.EQ;
+					case GT -> Opcode.GT;
+					case GTE -> Opcode.GTE;
+					case LT -> Opcode.LT;
+					case LTE -> Opcode.LTE;
+					default -> throw new IllegalStateException();
+				};
+				this.register = this.builder.allocNumber();
+				this.builder.emit(opcode, this.register, left, right);
+			}
+			case String -> {
+				switch (node.kind) {
+					case ADD -> {
+						this.register = this.builder.allocValue();
+						this.builder.emit(Opcode.SCAT, this.register, left, right);
+					}
+					case CMP -> {
+						this.register = this.builder.allocNumber();
+						this.builder.emit(Opcode.SEQ, this.register, left, right);
+					}
+					default -> throw new IllegalStateException();
+				}
+			}
+			default -> throw new IllegalStateException();
+		}
+	}
+
+	/**
+	 * Compiles && and ||, the right operand is skipped if the left one decides
+	 * the result.
+	 */
+	private void logical(AstBinOp node) {
+		var mark = this.builder.mark();
+		var left = this.compile(node.left);
+		this.builder.release(mark);
+		this.register = this.builder.allocNumber();
+		this.builder.emit(Opcode.NMOVE, this.register, left);
+		this.builder.emit(node.kind == AstBinOp.Kind.LAND ? Opcode.JF : Opcode.JT, this.register, 0);
+		var exit = this.builder.position() - 1;
+		mark = this.builder.mark();
+		var right = this.compile(node.right);
+		this.builder.release(mark);
+		this.builder.emit(Opcode.NMOVE, this.register, right);
+		this.builder.patch(exit, this.builder.position());
+	}
+
+	@Override
+	public void acceptUnaryOp(AstUnaryOp node) {
+		var mark = this.builder.mark();
+		var operand = this.compile(node.expr);
+		switch (node.kind) {
+			case POS -> this.register = operand;
+			case NEG -> {
+				this.builder.release(mark);
+				this.register = this.builder.allocNumber();
+				this.builder.emit(Opcode.NEG, this.register, operand);
+			}
+			case LNOT -> {
+				this.builder.release(mark);
+				this.register = this.builder.allocNumber();
+				this.builder.emit(Opcode.NOT, this.register, operand);
+			}
+			case DEREF -> {
+				this.builder.release(mark);
+				var value = this.builder.allocValue();
+				this.builder.emit(Opcode.DEREF, value, operand);
+				this.boxed(mark, node, value);
+			}
+			default -> throw new IllegalStateException();
+		}
+	}
+
+	@Override
+	public void acceptDecl(AstDecl node) {
+		var mark = this.builder.mark();
+		var slot = node.getAnnotation(ResolverStage.SLOT_KEY);
+		var value = this.compileValue(node.value);
+		if (slot.boxed) {
+			var reference = this.builder.allocValue();
+			this.builder.emit(Opcode.NEW, reference, value);
+			value = reference;
+		}
+		this.builder.emit(Opcode.STORE0, value, slot.index);
+		this.builder.release(mark);
+	}
+
+	@Override
+	public void acceptScope(AstScope node) {
+		for (var stmt : node.stmts) {
+			var mark = this.builder.mark();
+			this.compile(stmt);
+			this.builder.release(mark);
+		}
+		this.register = VmStage.compile(this.builder, node.expr, this.tail);
+	}
+
+	@Override
+	public void acceptEmptyNode(AstEmptyNode node) {
+	}
+
+	@Override
+	public void acceptVar(AstVar node) {
+		var type = node.getAnnotation(TypeCheckStage.TYPE_KEY);
+		var slot = node.getAnnotation(ResolverStage.SLOT_KEY);
+		if (type.isKind(ValueType.Kind.Number) && !slot.boxed) {
+			this.register = this.builder.allocNumber();
+			if (slot.depth == 0)
+				this.builder.emit(Opcode.NLOAD0, this.register, slot.index);
+			else
+				this.builder.emit(Opcode.NLOAD, this.register, slot.depth, slot.index);
+			return;
+		}
+
+		var mark = this.builder.mark();
+		var value = this.builder.allocValue();
+		if (slot.depth == 0)
+			this.builder.emit(Opcode.LOAD0, value, slot.index);
+		else
+			this.builder.emit(Opcode.LOAD, value, slot.depth, slot.index);
+		if (slot.boxed)
+			this.builder.emit(Opcode.DEREF, value, value);
+		this.boxed(mark, node, value);
+	}
+
+	@Override
+	public void acceptCall(AstCall call) {
+		var mark = this.builder.mark();
+		var arguments = new int[call.arguments.size()];
+
+		// A call to a record field is very common, it is done with a single instruction
+		if (call.function instanceof AstField field && !this.tail) {
+			var record = this.compile(field.value);
+			for (var i = 0; i < arguments.length; ++i)
+				arguments[i] = this.compileValue(call.arguments.get(i));
+			this.builder.release(mark);
+			var value = this.builder.allocValue();
+			var index = field.getAnnotation(ResolverStage.FIELD_KEY);
+			this.builder.emit(Opcode.FIELDCALL, value, record, index, arguments.length);
+			this.builder.emit(arguments);
+			this.boxed(mark, call, value);
+			return;
+		}
+
+		var function = this.compile(call.function);
+		for (var i = 0; i < arguments.length; ++i)
+			arguments[i] = this.compileValue(call.arguments.get(i));
+		this.builder.release(mark);
+		var value = this.builder.allocValue();
+		this.builder.emit(this.tail ? Opcode.TAILCALL : Opcode.CALL, value, function, arguments.length);
+		this.builder.emit(arguments);
+		this.boxed(mark, call, value);
+	}
+
+	@Override
+	public void acceptIf(AstIf astIf) {
+		var type = astIf.getAnnotation(TypeCheckStage.TYPE_KEY);
+		var unboxed = VmStage.isUnboxed(type);
+		var discard = type.isKind(ValueType.Kind.Void);
+		if (!discard)
+			this.register = unboxed ? this.builder.allocNumber() : this.builder.allocValue();
+
+		var exits = new ArrayList<Integer>();
+		for (var cond : astIf.conditionals) {
+			var next = this.condition(cond.condition);
+			this.branch(cond.expression, unboxed, discard);
+			this.builder.emit(Opcode.JMP, 0);
+			exits.add(this.builder.position() - 1);
+			this.builder.patch(next, this.builder.position());
+		}
+		this.branch(astIf.fallthrough, unboxed, discard);
+
+		for (var exit : exits)
+			this.builder.patch(exit, this.builder.position());
+	}
+
+	private void branch(AstNode node, boolean unboxed, boolean discard) {
+		var mark = this.builder.mark();
+		if (discard) {
+			VmStage.compile(this.builder, node, this.tail);
+		} else if (unboxed) {
+			var result = VmStage.compile(this.builder, node, this.tail);
+			this.builder.emit(Opcode.NMOVE, this.register, result);
+		} else {
+			var result = VmStage.compileValue(this.builder, node, this.tail);
+			this.builder.emit(Opcode.MOVE, this.register, result);
+		}
+		this.builder.release(mark);
+	}
+
+	@Override
+	public void acceptLoop(AstLoop loop) {
+		var start = this.builder.position();
+		var exit = this.condition(loop.condition);
+		var mark = this.builder.mark();
+		this.compile(loop.body);
+		this.builder.release(mark);
+		this.builder.emit(Opcode.JMP, start);
+		this.builder.patch(exit, this.builder.position());
+	}
+
+	@Override
+	public void acceptAssign(AstAssign assign) {
+		var mark = this.builder.mark();
+		var slot = assign.getAnnotation(ResolverStage.SLOT_KEY);
+		var value = this.compileValue(assign.value);
+		this.builder.emit(Opcode.ASSIGN, value, slot.depth, slot.index);
+		this.builder.release(mark);
+	}
+
+	@Override
+	public void acceptPrint(AstPrint print) {
+		var mark = this.builder.mark();
+		var type = print.expr.getAnnotation(TypeCheckStage.TYPE_KEY);
+		if (print.nodecimal && type.isKind(ValueType.Kind.Number)) {
+			var number = this.compile(print.expr);
+			this.builder.emit(Opcode.NPRINT, number, print.newline ? 1 : 0);
+		} else {
+			var value = this.compileValue(print.expr);
+			this.builder.emit(Opcode.PRINT, value, print.newline ? 1 : 0);
+		}
+		this.builder.release(mark);
+	}
+
+	@Override
+	public void acceptNew(AstNew anew) {
+		var mark = this.builder.mark();
+		var value = this.compileValue(anew.value);
+		this.builder.release(mark);
+		this.register = this.builder.allocValue();
+		this.builder.emit(Opcode.NEW, this.register, value);
+	}
+
+	@Override
+	public void acceptFn(AstFn fn) {
+		var function = VmStage.compileFunction(fn);
+		this.register = this.builder.allocValue();
+		this.builder.emit(Opcode.CLOSURE, this.register, this.builder.constant(function));
+	}
+
+	@Override
+	public void acceptRecord(AstRecord record) {
+		var type = record.getAnnotation(TypeCheckStage.TYPE_KEY);
+		var layout = type.getRecord();
+		var mark = this.builder.mark();
+		var indices = new int[record.fields.size()];
+		var values = new int[record.fields.size()];
+		var i = 0;
+		for (var field : record.fields.entrySet()) {
+			indices[i] = layout.indexOf(field.getKey());
+			values[i] = this.compileValue(field.getValue());
+			i += 1;
+		}
+		this.builder.release(mark);
+		this.register = this.builder.allocValue();
+		var constant = this.builder.constant(new RecordConstant(type, indices));
+		this.builder.emit(Opcode.RECORD, this.register, constant, values.length);
+		this.builder.emit(values);
+	}
+
+	@Override
+	public void acceptField(AstField field) {
+		var type = field.getAnnotation(TypeCheckStage.TYPE_KEY);
+		var mark = this.builder.mark();
+		var record = this.compile(field.value);
+		var index = field.getAnnotation(ResolverStage.FIELD_KEY);
+		this.builder.release(mark);
+		if (type.isKind(ValueType.Kind.Number)) {
+			this.register = this.builder.allocNumber();
+			this.builder.emit(Opcode.NFIELD, this.register, record, index);
+			return;
+		}
+
+		var value = this.builder.allocValue();
+		this.builder.emit(Opcode.FIELD, value, record, index);
+		this.boxed(mark, field, value);
+	}
+
+	@Override
+	public void acceptTypeAlias(AstTypeAlias typeAlias) {
+	}
+
+	@Override
+	public void acceptBuiltin(AstBuiltin builtin) {
+		var mark = this.builder.mark();
+		var args = new int[builtin.args.size()];
+		for (var i = 0; i < args.length; ++i)
+			args[i] = this.compile(builtin.args.get(i));
+		this.builder.release(mark);
+
+		var opcode = switch (builtin.builtin) {
+			case ABS -> Opcode.ABS;
+			case COS -> FastMathStage.isFast(builtin) ? Opcode.FCOS : Opcode.COS;
+			case MAX -> Opcode.MAX;
+			case MIN -> Opcode.MIN;
+			case PI -> Opcode.NCONST;
+			case POW -> Opcode.POW;
+			case SIN -> FastMathStage.isFast(builtin) ? Opcode.FSIN : Opcode.SIN;
+			case SQRT -> Opcode.SQRT;
+			case TAN -> FastMathStage.isFast(builtin) ? Opcode.FTAN : Opcode.TAN;
+			case RAND -> Opcode.RAND;
+		};
+		this.register = this.builder.allocNumber();
+		if (opcode == Opcode.NCONST) {
+			this.builder.emit(opcode, this.register, this.builder.number(Math.PI));
+			return;
+		}
+		this.builder.emit(opcode, this.register);
+		this.builder.emit(args);
+	}
+
+}
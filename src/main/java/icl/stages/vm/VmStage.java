@@ -0,0 +1,93 @@
+package icl.stages.vm;
+
+import icl.ValueType;
+import icl.ast.AstFn;
+import icl.ast.AstNode;
+import icl.pipeline.PipelineStage;
+import icl.stages.interpretor.Frame;
+import icl.stages.interpretor.value.Value;
+import icl.stages.resolve.ResolverStage;
+import icl.stages.typecheck.TypeCheckStage;
+
+/*-
+ * Lowers the annotated AST to register bytecode and runs it.
+ *
+ * The program and every function are compiled to a Chunk, see Opcode for the
+ * instruction set. Nodes of type Number and Boolean produce their result in a
+ * number register and are only boxed when stored in a frame, record, reference
+ * or passed as an argument. Functions created by the machine are regular
+ * function values whose code is their chunk.
+ * Calls between them keep the calc frames on the heap and calls in tail position
+ * do not grow the stack, so recursion depth is not limited by the thread stack.
+ *
+ * Must run after the ResolverStage.
+ */
+public class VmStage implements PipelineStage<AstNode, Value> {
+
+    @Override
+    public Value process(AstNode input) {
+        var builder = new ChunkBuilder();
+        builder.emit(Opcode.RET, compileValue(builder, input));
+        var chunk = builder.build();
+        var frame = new Frame(null, input.getAnnotation(ResolverStage.ROOT_FRAME_KEY));
+        return chunk.execute(frame);
+    }
+
+    /**
+     * Compiles a node into the given builder.
+     *
+     * @return The register with the result, a number register if the node is
+     *         unboxed, or -1 if the node is of type Void and produced nothing
+     */
+    static int compile(ChunkBuilder builder, AstNode node) {
+        return compile(builder, node, false);
+    }
+
+    /**
+     * @param tail If the node is in tail position of a function, calls in tail
+     *             position of the node can replace the running function
+     */
+    static int compile(ChunkBuilder builder, AstNode node, boolean tail) {
+        var visitor = new Visitor(builder, tail);
+        node.accept(visitor);
+        return visitor.register;
+    }
+
+    /**
+     * Compiles a node and boxes its result if needed.
+     *
+     * @return The value register with the result
+     */
+    static int compileValue(ChunkBuilder builder, AstNode node) {
+        return compileValue(builder, node, false);
+    }
+
+    static int compileValue(ChunkBuilder builder, AstNode node, boolean tail) {
+        var register = compile(builder, node, tail);
+        var type = node.getAnnotation(TypeCheckStage.TYPE_KEY);
+        if (register == -1) {
+            var value = builder.allocValue();
+            builder.emit(Opcode.KCONST, value, builder.constant(Value.createVoid()));
+            return value;
+        }
+        if (!isUnboxed(type))
+            return register;
+        var value = builder.allocValue();
+        builder.emit(type.isKind(ValueType.Kind.Number) ? Opcode.BOXN : Opcode.BOXB, value, register);
+        return value;
+    }
+
+    static FunctionConstant compileFunction(AstFn fn) {
+        var builder = new ChunkBuilder();
+        builder.emit(Opcode.RET, compileValue(builder, fn.body, true));
+        return new FunctionConstant(
+                fn.getAnnotation(TypeCheckStage.TYPE_KEY),
+                fn.getAnnotation(ResolverStage.FRAME_KEY),
+                fn.getAnnotation(ResolverStage.CAPTURES_KEY),
+                builder.build());
+    }
+
+    static boolean isUnboxed(ValueType type) {
+        return type.isKind(ValueType.Kind.Number) || type.isKind(ValueType.Kind.Boolean);
+    }
+}